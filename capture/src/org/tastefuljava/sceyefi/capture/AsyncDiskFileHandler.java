@@ -0,0 +1,252 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.util.BufferPool;
+
+/**
+ * A DiskFileHandler whose writes go through an AsynchronousFileChannel:
+ * handleFile copies the data into pooled direct buffers, and passes them to
+ * the channel without waiting for the writes to complete, so that the
+ * network is read while the kernel writes to the disk. At most a fixed
+ * number of buffers are being written for each file; beyond that, the
+ * reader waits for one of them. The upload waits for the pending writes on
+ * commit, and cancels them on abort.
+ */
+public class AsyncDiskFileHandler extends DiskFileHandler {
+    private final BufferPool pool;
+    private final int maxBuffers;
+
+    public AsyncDiskFileHandler(ServerConf serverConf) throws IOException {
+        super(serverConf);
+        maxBuffers = Math.max(serverConf.getAsyncBuffers(), 1);
+        pool = new BufferPool(serverConf.getAsyncBufferSize(),
+                4*maxBuffers, true);
+    }
+
+    @Override
+    PendingWrite write(File temp, long length, InputStream in, boolean force)
+            throws IOException {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(
+                temp.toPath(), StandardOpenOption.WRITE);
+        AsyncWriter writer = new AsyncWriter(channel, length, force);
+        boolean done = false;
+        try {
+            if (length > 0) {
+                writer.preallocate();
+            }
+            in.transferTo(writer);
+            writer.close();
+            done = true;
+        } finally {
+            if (!done) {
+                writer.cancel();
+            }
+        }
+        return writer;
+    }
+
+    private class AsyncWriter extends OutputStream implements PendingWrite {
+        private final AsynchronousFileChannel channel;
+        private final long length;
+        private final boolean force;
+        // one permit per buffer that is not being written
+        private final Semaphore available = new Semaphore(maxBuffers);
+        private volatile Throwable error;
+        private ByteBuffer current;
+        private long position;
+        private boolean closed;
+
+        AsyncWriter(AsynchronousFileChannel channel, long length,
+                boolean force) {
+            this.channel = channel;
+            this.length = length;
+            this.force = force;
+        }
+
+        /**
+         * Gives the file its final length before the data is written
+         */
+        void preallocate() throws IOException {
+            try {
+                channel.write(ByteBuffer.allocate(1), length - 1).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Write interrupted");
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause().getMessage(),
+                        ex.getCause());
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null) {
+                    current = acquire();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) {
+                    submit();
+                }
+            }
+        }
+
+        /**
+         * Submits the data written so far; the file stays open until
+         * await() or cancel()
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                if (current != null && current.position() > 0) {
+                    submit();
+                } else if (current != null) {
+                    pool.release(current);
+                    available.release();
+                    current = null;
+                }
+            }
+        }
+
+        public void await() throws IOException {
+            try {
+                available.acquireUninterruptibly(maxBuffers);
+                available.release(maxBuffers);
+                checkError();
+                if (position < length) {
+                    // shorter than announced
+                    channel.truncate(position);
+                }
+                if (force) {
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+
+        public void cancel() {
+            if (error == null) {
+                error = new IOException("Write cancelled");
+            }
+            if (current != null) {
+                pool.release(current);
+                available.release();
+                current = null;
+            }
+            try {
+                // the pending writes fail with AsynchronousCloseException
+                channel.close();
+            } catch (IOException ex) {
+                // nothing more can be done
+            }
+        }
+
+        private ByteBuffer acquire() throws IOException {
+            try {
+                available.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Write interrupted");
+            }
+            if (error != null) {
+                available.release();
+                checkError();
+            }
+            return pool.acquire();
+        }
+
+        private void submit() throws IOException {
+            ByteBuffer buf = current;
+            current = null;
+            buf.flip();
+            long pos = position;
+            position += buf.remaining();
+            new Write(buf, pos).start();
+            checkError();
+        }
+
+        private void checkError() throws IOException {
+            Throwable ex = error;
+            if (ex != null) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+
+        /**
+         * The write of a buffer, continued until the buffer is empty
+         */
+        private class Write implements CompletionHandler<Integer,Void> {
+            private final ByteBuffer buf;
+            private long position;
+
+            Write(ByteBuffer buf, long position) {
+                this.buf = buf;
+                this.position = position;
+            }
+
+            void start() {
+                try {
+                    channel.write(buf, position, null, this);
+                } catch (RuntimeException ex) {
+                    failed(ex, null);
+                }
+            }
+
+            public void completed(Integer n, Void attachment) {
+                position += n;
+                if (buf.hasRemaining()) {
+                    start();
+                } else {
+                    pool.release(buf);
+                    available.release();
+                }
+            }
+
+            public void failed(Throwable ex, Void attachment) {
+                if (error == null) {
+                    error = ex;
+                }
+                pool.release(buf);
+                available.release();
+            }
+        }
+    }
+}
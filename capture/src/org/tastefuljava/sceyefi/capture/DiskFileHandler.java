@@ -18,82 +18,323 @@
 package org.tastefuljava.sceyefi.capture;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Set;
 import java.util.regex.Pattern;
 import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
 import org.tastefuljava.sceyefi.capture.conf.Media;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
 import org.tastefuljava.sceyefi.capture.spi.EyeFiHandler;
 import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
+import org.tastefuljava.sceyefi.capture.util.GroupCommit;
 
+/**
+ * Writes the files of the uploads to the media folders of the cards. Each
+ * file is first written to a temporary file in its target folder, and only
+ * renamed to its final name when the upload is committed, so that a crash
+ * never leaves a truncated photo behind a valid name. The sync policy tells
+ * whether and when the files are forced to the disk (see ServerConf.getSync).
+ * As commit() returns only once the files are durable, the response is only
+ * sent to the card at that point, and a failure is reported to the card.
+ */
 public class DiskFileHandler implements EyeFiHandler {
-    private static final int BUFFER_SIZE = 4096;
-    private static final Pattern NUMBERED_PATTERN
-            = Pattern.compile("(^.*)\\(([0-9]+)\\)$");
+    private static final Pattern MOVIE_PATTERN = Pattern.compile(
+            "^.*\\.(mov|mp4|m4v|avi|mts|m2ts|3gp)$",
+            Pattern.CASE_INSENSITIVE);
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final String sync;
+    private final boolean preallocate;
+    private final NameIndex names = new NameIndex();
+    // shared by all the uploads, with the group policy
+    private final GroupCommit groupCommit;
+
+    public DiskFileHandler() {
+        sync = ServerConf.SYNC_NONE;
+        preallocate = false;
+        groupCommit = null;
+    }
+
+    /**
+     * Creates a handler with the sync policy and the disk settings of the
+     * server configuration
+     */
+    public DiskFileHandler(ServerConf serverConf) throws IOException {
+        String sync = serverConf.getSync();
+        if (ServerConf.SYNC_GROUP.equals(sync)) {
+            groupCommit = new GroupCommit(serverConf.getGroupCommitWindow(),
+                    serverConf.getGroupCommitThreads());
+        } else if (ServerConf.SYNC_NONE.equals(sync)
+                || ServerConf.SYNC_FILE.equals(sync)
+                || ServerConf.SYNC_SESSION.equals(sync)) {
+            groupCommit = null;
+        } else {
+            throw new IOException("Unknown sync policy: " + sync);
+        }
+        this.sync = sync;
+        this.preallocate = serverConf.getPreallocate();
+    }
 
     public UploadHandler startUpload(final EyeFiCard card, String archiveName) {
         return new UploadHandler() {
-            private List<File> files = new ArrayList<File>();
+            private List<PendingFile> files = new ArrayList<PendingFile>();
 
             public void handleFile(String fileName, Date timestamp,
                     InputStream in) throws IOException {
-                Media media = card.getMedia(Media.TYPE_PHOTO);
+                // the length is unknown: not preallocated
+                handleFile(fileName, timestamp, -1, in);
+            }
+
+            @Override
+            public void handleFile(String fileName, Date timestamp,
+                    long length, InputStream in) throws IOException {
+                // names from long name or PAX headers may have a path
+                fileName = fileName.substring(fileName.lastIndexOf('/') + 1);
+                Media media = null;
+                if (isMovie(fileName)) {
+                    media = card.getMedia(Media.TYPE_MOVIE);
+                }
                 if (media == null) {
-                    throw new IOException("No photo media in Eye-Fi settings");
+                    media = card.getMedia(Media.TYPE_PHOTO);
                 }
-                File folder = media.folderForDate(timestamp);
-                if (!folder.isDirectory() && !folder.mkdirs()) {
-                    throw new IOException("Could not create folder " + folder);
+                if (media == null) {
+                    throw new IOException("No photo media in Eye-Fi settings");
                 }
-                File file = uniqueFile(folder, fileName);
-                OutputStream out = new FileOutputStream(file);
+                File folder = media.createFolderForDate(timestamp);
+                File temp;
                 try {
-                    byte buf[] = new byte[BUFFER_SIZE];
-                    for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
-                        out.write(buf, 0, n);
+                    temp = File.createTempFile("." + fileName + "-",
+                            TEMP_SUFFIX, folder);
+                } catch (IOException ex) {
+                    // the folder may have been deleted since it was created
+                    if (folder.isDirectory() || !folder.mkdirs()) {
+                        throw ex;
                     }
-                } finally {
-                    out.close();
+                    temp = File.createTempFile("." + fileName + "-",
+                            TEMP_SUFFIX, folder);
                 }
+                // deleted by abort() if the upload is interrupted
+                PendingFile file = new PendingFile(temp, folder, fileName);
                 files.add(file);
+                file.write = write(temp, preallocate ? length : -1, in,
+                        ServerConf.SYNC_FILE.equals(sync));
             }
 
             public void abort() {
+                for (PendingFile file: files) {
+                    if (file.write != null) {
+                        file.write.cancel();
+                    }
+                }
                 while (!files.isEmpty()) {
-                    File file = files.remove(0);
-                    file.delete();
+                    PendingFile file = files.remove(0);
+                    file.temp.delete();
+                }
+            }
+
+            public void commit() throws IOException {
+                // on failure, the card sends the whole archive again:
+                // nothing of this upload is kept
+                List<File> published = new ArrayList<File>();
+                boolean done = false;
+                try {
+                    commit(published);
+                    done = true;
+                } finally {
+                    if (!done) {
+                        for (File file: published) {
+                            names.unpublish(file);
+                        }
+                        abort();
+                    }
+                }
+            }
+
+            private void commit(final List<File> published)
+                    throws IOException {
+                for (PendingFile file: files) {
+                    if (file.write != null) {
+                        file.write.await();
+                        file.write = null;
+                    }
+                }
+                if (groupCommit != null) {
+                    // files, names and folders in a single batch
+                    List<File> temps = new ArrayList<File>();
+                    for (PendingFile file: files) {
+                        temps.add(file.temp);
+                    }
+                    groupCommit.sync(temps, new GroupCommit.Publisher() {
+                        public Collection<File> publish() throws IOException {
+                            return publishFiles(published);
+                        }
+                    });
+                    return;
+                }
+                if (ServerConf.SYNC_SESSION.equals(sync)) {
+                    for (PendingFile file: files) {
+                        force(file.temp);
+                    }
+                }
+                Set<File> folders = publishFiles(published);
+                // the renames are only durable once the folders are
+                // synced
+                if (!ServerConf.SYNC_NONE.equals(sync)) {
+                    for (File folder: folders) {
+                        force(folder);
+                    }
                 }
             }
 
-            public void commit() {
-                files.clear();
+            /**
+             * Gives the files their final names; returns their folders
+             */
+            private Set<File> publishFiles(List<File> published)
+                    throws IOException {
+                Set<File> folders = new LinkedHashSet<File>();
+                while (!files.isEmpty()) {
+                    PendingFile file = files.get(0);
+                    published.add(names.publish(file.temp, file.folder,
+                            file.fileName));
+                    files.remove(0);
+                    folders.add(file.folder);
+                }
+                return folders;
             }
         };
     }
 
-    private static File uniqueFile(File folder, String fileName) {
-        File file = new File(folder, fileName);
-        if (file.exists()) {
-            int extPos = fileName.lastIndexOf('.');
-            String name = extPos < 0 ? fileName : fileName.substring(0, extPos);
-            String ext = extPos < 0 ? "" : fileName.substring(extPos);
-            int number = 0;
-            Matcher matcher = NUMBERED_PATTERN.matcher(name);
-            if (matcher.matches()) {
-                name = matcher.group(1);
-                number = Integer.parseInt(matcher.group(2));
+    /**
+     * Writes the data of a file to its temporary file; length is the final
+     * length if the file is to be preallocated, -1 otherwise, and force
+     * tells whether the file is to be forced to the disk once written.
+     * Returns the write if it is still in progress, null if it is complete.
+     */
+    PendingWrite write(File temp, long length, InputStream in, boolean force)
+            throws IOException {
+        FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.WRITE);
+        try {
+            if (length > 0) {
+                writePreallocated(channel, in, length);
+            } else {
+                // the bytes go from the upload buffer to the channel,
+                // through a direct buffer
+                in.transferTo(Channels.newOutputStream(channel));
+            }
+            if (force) {
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+        return null;
+    }
+
+    private static boolean isMovie(String fileName) {
+        return MOVIE_PATTERN.matcher(fileName).matches();
+    }
+
+    /**
+     * Gives the file its final length before the data is written, so that
+     * the size changes once rather than with every write. The data is then
+     * written at explicit positions. If the entry ends up shorter, or the
+     * upload fails, the file is truncated to what has actually been
+     * written.
+     */
+    private static void writePreallocated(FileChannel channel,
+            InputStream in, long length) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        while (last.hasRemaining()) {
+            channel.write(last, length - 1);
+        }
+        PositionedOutputStream out = new PositionedOutputStream(channel);
+        try {
+            in.transferTo(out);
+        } finally {
+            if (out.position < length) {
+                channel.truncate(out.position);
             }
-            do {
-                ++number;
-                file = new File(folder, name + "(" + number + ")" + ext);
-            } while (file.exists());
         }
-        return file;
+    }
+
+    private static void force(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                file.isDirectory()
+                        ? StandardOpenOption.READ : StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes to a file channel at explicit positions
+     */
+    private static class PositionedOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        PositionedOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+        }
+    }
+
+    /**
+     * A write that completes after write() has returned
+     */
+    interface PendingWrite {
+        /**
+         * Waits until the data has been written (and forced if requested),
+         * and closes the file
+         */
+        void await() throws IOException;
+
+        /**
+         * Stops writing, and closes the file
+         */
+        void cancel();
+    }
+
+    /**
+     * A file written to a temporary file, to be renamed on commit
+     */
+    private static class PendingFile {
+        private final File temp;
+        private final File folder;
+        private final String fileName;
+        private PendingWrite write;
+
+        PendingFile(File temp, File folder, String fileName) {
+            this.temp = temp;
+            this.folder = folder;
+            this.fileName = fileName;
+        }
     }
 }
@@ -22,10 +22,12 @@ import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
 import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
 
 public class Main {
     private static File settings = null;
+    private static File config = null;
 
     public static void main(String[] args) {
         try {
@@ -39,7 +41,16 @@ public class Main {
             } else {
                 conf = EyeFiConf.load(settings);
             }
-            EyeFiServer.start(conf, new DiskFileHandler());
+            ServerConf serverConf;
+            if (config == null) {
+                serverConf = ServerConf.load();
+            } else {
+                serverConf = ServerConf.load(config);
+            }
+            DiskFileHandler handler = serverConf.getAsyncWrites()
+                    ? new AsyncDiskFileHandler(serverConf)
+                    : new DiskFileHandler(serverConf);
+            EyeFiServer.start(conf, serverConf, handler);
         } catch (IOException ex) {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -51,6 +62,8 @@ public class Main {
             String arg = args[i++];
             if (arg.equals("-settings") && i < args.length) {
                 settings = new File(args[i++]);
+            } else if (arg.equals("-config") && i < args.length) {
+                config = new File(args[i++]);
             } else {
                 return false;
             }
@@ -60,6 +73,7 @@ public class Main {
 
     private static void usage() {
         System.out.println(
-                "Usage: java -jar sceye-fi.jar [-settings <settings-file>]");
+                "Usage: java -jar sceye-fi.jar [-settings <settings-file>]"
+                + " [-config <properties-file>]");
     }
 }
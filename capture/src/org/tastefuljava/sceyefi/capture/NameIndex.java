@@ -0,0 +1,226 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The names of the files in the media folders, used to find a free name for
+ * a new file without looking at the disk each time. The names of a folder
+ * are read once, when a file is first added to it; for each name and
+ * extension, the index keeps the next free number, so that after
+ * P1030001.JPG, P1030001(1).JPG, ... the next name is found at once. A name
+ * is only taken in the index, under the lock of its folder; the file is
+ * then published under that name with a hard link, which fails rather than
+ * replace a file created by someone else in the meantime, in which case the
+ * next number is tried. The file never appears under its final name before
+ * it is complete. On file systems without hard links (FAT, exFAT, most
+ * network shares), the file is moved instead, after checking that the name
+ * is free.
+ */
+class NameIndex {
+    private static final Pattern NUMBERED_PATTERN
+            = Pattern.compile("(^.*)\\(([0-9]+)\\)$");
+    // folders are forgotten beyond this number, and read again if needed
+    private static final int MAX_FOLDERS = 64;
+
+    private final ConcurrentHashMap<File,Folder> folders
+            = new ConcurrentHashMap<File,Folder>();
+
+    /**
+     * Gives a temporary file of the folder a name that is not used in the
+     * folder: fileName, or fileName with a number added. Returns the
+     * published file.
+     */
+    File publish(File temp, File folder, String fileName)
+            throws IOException {
+        return getFolder(folder).publish(temp, fileName);
+    }
+
+    /**
+     * Deletes a file published by publish(), and frees its name
+     */
+    void unpublish(File file) {
+        getFolder(file.getParentFile()).unpublish(file);
+    }
+
+    /**
+     * Creates a hard link to an existing file
+     */
+    void createLink(Path link, Path existing) throws IOException {
+        Files.createLink(link, existing);
+    }
+
+    private Folder getFolder(File dir) {
+        Folder folder = folders.get(dir);
+        if (folder == null) {
+            if (folders.size() >= MAX_FOLDERS) {
+                Iterator<File> it = folders.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            Folder newFolder = new Folder(dir);
+            folder = folders.putIfAbsent(dir, newFolder);
+            if (folder == null) {
+                folder = newFolder;
+            }
+        }
+        return folder;
+    }
+
+    private class Folder {
+        private final File dir;
+        private final ReentrantLock lock = new ReentrantLock();
+        // false once the file system has refused a hard link
+        private boolean links = true;
+        private Set<String> names;
+        // next number to try, by name without number + extension
+        private final Map<String,Integer> numbers
+                = new HashMap<String,Integer>();
+
+        Folder(File dir) {
+            this.dir = dir;
+        }
+
+        File publish(File temp, String fileName) throws IOException {
+            lock.lock();
+            try {
+                if (names == null) {
+                    load();
+                }
+                int extPos = fileName.lastIndexOf('.');
+                String name = extPos < 0
+                        ? fileName : fileName.substring(0, extPos);
+                String ext = extPos < 0 ? "" : fileName.substring(extPos);
+                int number = 0;
+                Matcher matcher = NUMBERED_PATTERN.matcher(name);
+                if (matcher.matches()) {
+                    name = matcher.group(1);
+                    number = Integer.parseInt(matcher.group(2));
+                }
+                String candidate = fileName;
+                while (true) {
+                    if (!names.contains(candidate)) {
+                        File file = new File(dir, candidate);
+                        try {
+                            link(temp, file);
+                            add(candidate);
+                            return file;
+                        } catch (FileAlreadyExistsException ex) {
+                            // created behind our back
+                            add(candidate);
+                        }
+                    }
+                    Integer next = numbers.get(name + ext);
+                    number = Math.max(number + 1,
+                            next == null ? 1 : next.intValue());
+                    candidate = name + "(" + number + ")" + ext;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void unpublish(File file) {
+            lock.lock();
+            try {
+                if (file.delete() && names != null) {
+                    names.remove(file.getName());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Moves temp to file, unless file already exists
+         */
+        private void link(File temp, File file) throws IOException {
+            if (links) {
+                boolean linked = false;
+                try {
+                    createLink(file.toPath(), temp.toPath());
+                    linked = true;
+                } catch (FileAlreadyExistsException ex) {
+                    throw ex;
+                } catch (NoSuchFileException ex) {
+                    throw ex;
+                } catch (FileSystemException ex) {
+                    // EPERM and the like: no hard links on this file system
+                    links = false;
+                } catch (UnsupportedOperationException ex) {
+                    links = false;
+                }
+                if (linked) {
+                    Files.delete(temp.toPath());
+                    return;
+                }
+            }
+            // checks that the target does not exist, but is not atomic
+            Files.move(temp.toPath(), file.toPath());
+        }
+
+        private void load() throws IOException {
+            String[] list = dir.list();
+            if (list == null) {
+                throw new IOException("Could not list folder " + dir);
+            }
+            names = new HashSet<String>();
+            for (String fileName: list) {
+                add(fileName);
+            }
+        }
+
+        private void add(String fileName) {
+            names.add(fileName);
+            int extPos = fileName.lastIndexOf('.');
+            String name = extPos < 0 ? fileName : fileName.substring(0, extPos);
+            Matcher matcher = NUMBERED_PATTERN.matcher(name);
+            if (matcher.matches()) {
+                String key = matcher.group(1)
+                        + (extPos < 0 ? "" : fileName.substring(extPos));
+                try {
+                    int number = Integer.parseInt(matcher.group(2));
+                    Integer next = numbers.get(key);
+                    if (next == null || next.intValue() <= number) {
+                        numbers.put(key, number + 1);
+                    }
+                } catch (NumberFormatException ex) {
+                    // too large to be one of ours
+                }
+            }
+        }
+    }
+}
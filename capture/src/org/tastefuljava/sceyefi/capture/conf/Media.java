@@ -18,9 +18,15 @@
 package org.tastefuljava.sceyefi.capture.conf;
 
 import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.TextStyle;
+import java.time.temporal.ChronoField;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 import org.jdom.Element;
 
 public class Media {
@@ -31,11 +37,19 @@ public class Media {
     public static final int DATE_UPLOAD = 0;
     public static final int DATE_CREATED = 1;
 
+    // the day folders created, beyond which the cache is cleared
+    private static final int MAX_FOLDERS = 32;
+    // the key of the folder when no date is added
+    private static final LocalDate NO_DATE = LocalDate.MIN;
+
     private final int type;
     private final File folder;
     private final boolean addDate;
     private final int dateType;
     private final String customDateFormat;
+    private final DateTimeFormatter dateFormat;
+    private final ConcurrentHashMap<LocalDate,File> createdFolders
+            = new ConcurrentHashMap<LocalDate,File>();
 
     Media(Element elm) {
         type = Integer.parseInt(elm.getAttributeValue("Type"));
@@ -43,6 +57,7 @@ public class Media {
         addDate = 0 != Integer.parseInt(elm.getChildText("AddDate"));
         dateType = Integer.parseInt(elm.getChildText("DateType"));
         customDateFormat = elm.getChildText("CustomDateFormat");
+        dateFormat = compileDateFormat(customDateFormat);
     }
 
     public int getType() {
@@ -69,49 +84,82 @@ public class Media {
         if (!addDate) {
             return folder;
         } else {
-            Date date = dateType == DATE_CREATED ? creationDate : new Date();
-            String dir = dateFormat().format(date);
-            return new File(folder, dir);
+            return new File(folder, dateFormat.format(day(creationDate)));
+        }
+    }
+
+    /**
+     * Returns the folder for the date, as folderForDate, after creating it
+     * if needed. The folders created are remembered, so that the disk is
+     * only looked at for the first file of a day.
+     */
+    public File createFolderForDate(Date creationDate) throws IOException {
+        LocalDate day = addDate ? day(creationDate) : NO_DATE;
+        File dir = createdFolders.get(day);
+        if (dir == null) {
+            dir = addDate ? new File(folder, dateFormat.format(day)) : folder;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create folder " + dir);
+            }
+            if (createdFolders.size() >= MAX_FOLDERS) {
+                createdFolders.clear();
+            }
+            createdFolders.put(day, dir);
+        }
+        return dir;
+    }
+
+    private LocalDate day(Date creationDate) {
+        if (dateType == DATE_CREATED) {
+            return creationDate.toInstant().atZone(ZoneId.systemDefault())
+                    .toLocalDate();
+        } else {
+            return LocalDate.now();
         }
     }
 
-    private DateFormat dateFormat() {
-        StringBuilder buf = new StringBuilder();
-        String fmt = "%d-%m-%Y";
-        if (customDateFormat != null && !customDateFormat.isEmpty()) {
-            fmt = customDateFormat;
+    /**
+     * Compiles an Eye-Fi date format, where %Y, %m, %b, %B and %d stand for
+     * the year, the month as a number, as an abbreviated and as a full name,
+     * and the day. Anything else is literal.
+     */
+    private static DateTimeFormatter compileDateFormat(String fmt) {
+        if (fmt == null || fmt.isEmpty()) {
+            fmt = "%d-%m-%Y";
         }
-        char[] chars = fmt.toCharArray();
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
         boolean escape = false;
-        for (char c: chars) {
+        for (char c: fmt.toCharArray()) {
             if (escape) {
                 escape = false;
                 switch (c) {
                     case 'Y':
-                        buf.append("yyyy");
+                        builder.appendValue(ChronoField.YEAR, 4);
                         break;
                     case 'm':
-                        buf.append("MM");
+                        builder.appendValue(ChronoField.MONTH_OF_YEAR, 2);
                         break;
                     case 'b':
-                        buf.append("MMM");
+                        builder.appendText(ChronoField.MONTH_OF_YEAR,
+                                TextStyle.SHORT);
                         break;
                     case 'B':
-                        buf.append("MMMM");
+                        builder.appendText(ChronoField.MONTH_OF_YEAR,
+                                TextStyle.FULL);
                         break;
                     case 'd':
-                        buf.append("dd");
+                        builder.appendValue(ChronoField.DAY_OF_MONTH, 2);
                         break;
                     default:
-                        buf.append(c);
+                        builder.appendLiteral(c);
                         break;
                 }
             } else if (c == '%') {
                 escape = true;
             } else {
-                buf.append(c);
+                builder.appendLiteral(c);
             }
         }
-        return new SimpleDateFormat(buf.toString());
+        return builder.toFormatter();
     }
 }
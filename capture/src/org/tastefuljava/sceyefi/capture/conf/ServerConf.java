@@ -0,0 +1,290 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.conf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings of the capture server itself (as opposed to the Eye-Fi settings
+ * of the cards). The values are read from properties named sceyefi.*, either
+ * from the system properties or from a properties file.
+ */
+public class ServerConf {
+    public static final String TRANSPORT_HTTP = "http";
+    public static final String TRANSPORT_NIO = "nio";
+    public static final String EXECUTOR_FIXED = "fixed";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    public static final String SYNC_NONE = "none";
+    public static final String SYNC_FILE = "file";
+    public static final String SYNC_SESSION = "session";
+    public static final String SYNC_GROUP = "group";
+
+    private static final String PREFIX = "sceyefi.";
+
+    private final Properties props;
+
+    public static ServerConf load() {
+        return new ServerConf(System.getProperties());
+    }
+
+    public static ServerConf load(File file) throws IOException {
+        Properties props = new Properties(System.getProperties());
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return new ServerConf(props);
+    }
+
+    public ServerConf(Properties props) {
+        this.props = props;
+    }
+
+    public int getPort() {
+        return getInt("port", 59278);
+    }
+
+    /**
+     * Returns the HTTP transport: "http" for the JDK HTTP server, "nio" for
+     * the selector-based transport. The default is "nio" with virtual
+     * threads, "http" otherwise.
+     */
+    public String getTransport() {
+        return getString("transport",
+                EXECUTOR_VIRTUAL.equals(getExecutor())
+                        ? TRANSPORT_NIO : TRANSPORT_HTTP);
+    }
+
+    /**
+     * Returns the way the exchanges are executed: "fixed" for a fixed pool
+     * of workers, "virtual" for a virtual thread per exchange (or the fixed
+     * pool, when the JVM has no virtual threads). Virtual threads need the
+     * "nio" transport: the JDK HTTP server reads the request bodies inside
+     * synchronized blocks, which pin the carrier threads.
+     */
+    public String getExecutor() {
+        return getString("executor", EXECUTOR_FIXED);
+    }
+
+    public int getWorkers() {
+        return getInt("workers", 2);
+    }
+
+    /**
+     * Returns the maximum number of uploads processed at the same time, or 0
+     * for no limit.
+     */
+    public int getMaxUploads() {
+        return getInt("maxUploads", 0);
+    }
+
+    /**
+     * Returns the maximum number of uploads from the same card processed at
+     * the same time, or 0 for no limit.
+     */
+    public int getMaxUploadsPerCard() {
+        return getInt("maxUploadsPerCard", 0);
+    }
+
+    /**
+     * Returns the maximum number of uploads waiting for one of the maxUploads
+     * to complete; further uploads are rejected.
+     */
+    public int getMaxQueuedUploads() {
+        return getInt("maxQueuedUploads", 16);
+    }
+
+    /**
+     * Returns the time in seconds an upload waits in the queue before it is
+     * rejected
+     */
+    public int getQueueTimeout() {
+        return getInt("queueTimeout", 30);
+    }
+
+    /**
+     * Returns the delay in seconds after which a card should retry a
+     * rejected upload (Retry-After header)
+     */
+    public int getRetryAfter() {
+        return getInt("retryAfter", 10);
+    }
+
+    /**
+     * Returns the time in seconds after which an unused card session is
+     * evicted
+     */
+    public int getSessionTimeout() {
+        return getPositiveInt("sessionTimeout", 1800);
+    }
+
+    /**
+     * Tells whether uploads are spooled to disk as they are received, so
+     * that an interrupted upload can be resumed where it stopped; off by
+     * default: every upload is then received from the start
+     */
+    public boolean getResume() {
+        return Boolean.parseBoolean(getString("resume", "false"));
+    }
+
+    /**
+     * Returns the folder where interrupted uploads are kept until they are
+     * resumed
+     */
+    public File getPartialDir() {
+        String dir = getString("partialDir", null);
+        return dir != null ? new File(dir) : new File(
+                System.getProperty("java.io.tmpdir"), "sceyefi-partial");
+    }
+
+    /**
+     * Returns the time in seconds after which an interrupted upload that has
+     * not been resumed is deleted
+     */
+    public int getPartialTimeout() {
+        return getPositiveInt("partialTimeout", 86400);
+    }
+
+    /**
+     * Returns the number of buffers between the thread that receives an
+     * upload and the thread that writes its files, or 0 (the default) to do
+     * both on the same thread
+     */
+    public int getPipelineBuffers() {
+        return getInt("pipeline.buffers", 0);
+    }
+
+    public int getPipelineBufferSize() {
+        return getInt("pipeline.bufferSize", 64*1024);
+    }
+
+    public int getEventLoops() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return getInt("nio.eventLoops", Math.min(cpus, 4));
+    }
+
+    public int getBufferSize() {
+        return getInt("nio.bufferSize", 64*1024);
+    }
+
+    public int getMaxPooledBuffers() {
+        return getInt("nio.maxPooledBuffers", 256);
+    }
+
+    /**
+     * Returns the number of buffers of a request body that can be waiting for
+     * the handler; the connection is not read any further until it catches up
+     */
+    public int getBodyBuffers() {
+        return getInt("nio.bodyBuffers", 4);
+    }
+
+    /**
+     * Returns the maximum size in megabytes of a request; larger requests
+     * are rejected
+     */
+    public int getMaxRequestSize() {
+        return getInt("nio.maxRequestSize", 2048);
+    }
+
+    /**
+     * Returns the time in seconds after which an idle connection is closed
+     */
+    public int getIdleTimeout() {
+        return getInt("nio.idleTimeout", 60);
+    }
+
+    /**
+     * Returns when the files written to disk are synced: "none" (the
+     * default) leaves it to the operating system, "file" syncs each file
+     * once it has been written, "session" syncs all the files of an upload
+     * when it is committed, "group" syncs them together with those of the
+     * uploads committed at the same time.
+     */
+    public String getSync() {
+        return getString("sync", SYNC_NONE);
+    }
+
+    /**
+     * Returns how long (in milliseconds) a group commit waits for other
+     * uploads to join it
+     */
+    public int getGroupCommitWindow() {
+        return getInt("groupCommitWindow", 5);
+    }
+
+    /**
+     * Returns the number of files that a group commit forces at the same
+     * time
+     */
+    public int getGroupCommitThreads() {
+        return getInt("groupCommitThreads", 8);
+    }
+
+    /**
+     * Returns true if the files written to disk are given their final size
+     * before their data is written
+     */
+    public boolean getPreallocate() {
+        return Boolean.parseBoolean(getString("preallocate", "false"));
+    }
+
+    /**
+     * Returns true if the files are written to disk asynchronously
+     */
+    public boolean getAsyncWrites() {
+        return Boolean.parseBoolean(getString("asyncWrites", "false"));
+    }
+
+    /**
+     * Returns the number of buffers that can be being written at the same
+     * time for each file, with asynchronous writes
+     */
+    public int getAsyncBuffers() {
+        return getInt("async.buffers", 4);
+    }
+
+    public int getAsyncBufferSize() {
+        return getInt("async.bufferSize", 256*1024);
+    }
+
+    private String getString(String name, String def) {
+        String s = props.getProperty(PREFIX + name);
+        return s == null || s.trim().isEmpty() ? def : s.trim();
+    }
+
+    private int getInt(String name, int def) {
+        String s = getString(name, null);
+        return s == null ? def : Integer.parseInt(s);
+    }
+
+    private int getPositiveInt(String name, int def) {
+        int value = getInt(name, def);
+        if (value <= 0) {
+            throw new IllegalArgumentException(
+                    PREFIX + name + " must be positive: " + value);
+        }
+        return value;
+    }
+}
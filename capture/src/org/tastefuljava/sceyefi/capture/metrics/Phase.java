@@ -0,0 +1,41 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.metrics;
+
+/**
+ * The phases of an upload, from the top of the pipeline (the handler pulling
+ * the files out of the archive) to the bottom (the socket).
+ */
+public enum Phase {
+    /** everything else: SOAP envelope, part headers, response */
+    OTHER,
+    /** reading the request body from the transport */
+    RECEIVE,
+    /** scanning the body for the multipart boundaries */
+    MULTIPART,
+    /** computing the integrity checksum of the archive */
+    CHECKSUM,
+    /** decoding the tar archive */
+    TAR,
+    /** the upload handler writing the files */
+    HANDLER,
+    /** the upload handler committing the files */
+    COMMIT,
+    /** the upload handler deleting the files of a failed upload */
+    ABORT
+}
@@ -0,0 +1,82 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.metrics;
+
+/**
+ * Measures the self time of each phase of an upload. The clock is switched
+ * from one phase to another when the pipeline crosses a layer, so the time
+ * spent in the layers below is not counted twice. A clock is used by a
+ * single thread; the clock of another thread can be added to it.
+ */
+public class PhaseClock {
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] times = new long[PHASES.length];
+    private final long start;
+    private Phase current = Phase.OTHER;
+    private long last;
+
+    public PhaseClock() {
+        start = last = System.nanoTime();
+    }
+
+    /**
+     * Switches to the given phase, and returns the previous one, to be passed
+     * to exit()
+     */
+    public Phase enter(Phase phase) {
+        long now = System.nanoTime();
+        times[current.ordinal()] += now - last;
+        last = now;
+        Phase previous = current;
+        current = phase;
+        return previous;
+    }
+
+    public void exit(Phase previous) {
+        enter(previous);
+    }
+
+    /**
+     * Returns the self time of a phase in nanoseconds, up to the last switch
+     */
+    public long getTime(Phase phase) {
+        return times[phase.ordinal()];
+    }
+
+    /**
+     * Adds the phase times of another clock, used by another thread for the
+     * same upload. The time the other clock spent in Phase.OTHER (waiting
+     * for this thread) is not added.
+     */
+    public void add(PhaseClock other) {
+        for (Phase phase: PHASES) {
+            if (phase != Phase.OTHER) {
+                times[phase.ordinal()] += other.times[phase.ordinal()];
+            }
+        }
+    }
+
+    /**
+     * Stops the clock and returns the total time in nanoseconds
+     */
+    public long stop() {
+        enter(current);
+        return last - start;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.metrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.tastefuljava.sceyefi.capture.util.TransferSource;
+import org.tastefuljava.sceyefi.capture.util.Transfers;
+
+/**
+ * Counts the time spent reading the underlying stream as a phase of the
+ * upload, and the number of bytes read. Meant to be read in blocks: the clock
+ * is switched on every call.
+ */
+public class PhaseInputStream extends FilterInputStream
+        implements TransferSource {
+    private final PhaseClock clock;
+    private final Phase phase;
+    private long count;
+
+    public PhaseInputStream(InputStream in, PhaseClock clock, Phase phase) {
+        super(in);
+        this.clock = clock;
+        this.phase = phase;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        Phase previous = clock.enter(phase);
+        try {
+            int b = in.read();
+            if (b >= 0) {
+                ++count;
+            }
+            return b;
+        } finally {
+            clock.exit(previous);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Phase previous = clock.enter(phase);
+        try {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        } finally {
+            clock.exit(previous);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        Phase previous = clock.enter(phase);
+        try {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        } finally {
+            clock.exit(previous);
+        }
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        return transferTo(out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Transfers the bytes in this phase; the time spent writing them to out
+     * is counted in the phase of the caller.
+     */
+    public long transferTo(final OutputStream out, long count)
+            throws IOException {
+        final Phase previous = clock.enter(phase);
+        try {
+            long n = Transfers.transfer(in, new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    Phase current = clock.enter(previous);
+                    try {
+                        out.write(b, off, len);
+                    } finally {
+                        clock.exit(current);
+                    }
+                }
+            }, count);
+            this.count += n;
+            return n;
+        } finally {
+            clock.exit(previous);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Phase previous = clock.enter(phase);
+        try {
+            in.close();
+        } finally {
+            clock.exit(previous);
+        }
+    }
+}
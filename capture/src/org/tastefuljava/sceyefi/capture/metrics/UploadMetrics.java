@@ -0,0 +1,263 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the uploads: the self time of each phase, the
+ * number of uploads and bytes, and the transfer rate of each card. Published
+ * as an MBean and as text in the Prometheus exposition format.
+ * <p>
+ * The rates are kept for a bounded number of cards: beyond it, the card that
+ * has been idle the longest is forgotten. Its bytes remain in the total.
+ */
+public class UploadMetrics implements UploadMetricsMBean {
+    public static final String OBJECT_NAME
+            = "org.tastefuljava.sceyefi:type=UploadMetrics";
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final int DEFAULT_MAX_CARDS = 256;
+
+    private final LongAdder uploads = new LongAdder();
+    private final LongAdder failedUploads = new LongAdder();
+    private final LongAdder rejectedUploads = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Histogram uploadTimes = new Histogram();
+    private final Histogram[] phaseTimes = new Histogram[PHASES.length];
+    private final ConcurrentMap<String,CardStats> cards
+            = new ConcurrentHashMap<String,CardStats>();
+    private final int maxCards;
+
+    public UploadMetrics() {
+        this(DEFAULT_MAX_CARDS);
+    }
+
+    public UploadMetrics(int maxCards) {
+        if (maxCards <= 0) {
+            throw new IllegalArgumentException(
+                    "maxCards must be positive: " + maxCards);
+        }
+        this.maxCards = maxCards;
+        for (int i = 0; i < phaseTimes.length; ++i) {
+            phaseTimes[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records the phase times of a completed upload; the clock is stopped.
+     * An upload that has been rejected is counted by recordRejected only.
+     */
+    public void record(PhaseClock clock, boolean success) {
+        uploadTimes.record(clock.stop());
+        for (Phase phase: PHASES) {
+            phaseTimes[phase.ordinal()].record(clock.getTime(phase));
+        }
+        uploads.increment();
+        if (!success) {
+            failedUploads.increment();
+        }
+    }
+
+    public void recordRejected() {
+        rejectedUploads.increment();
+    }
+
+    /**
+     * Records the size of an archive received from a card, and the time it
+     * took
+     */
+    public void recordCard(String macAddress, long size, long nanos) {
+        bytes.add(size);
+        CardStats stats = cards.get(macAddress);
+        if (stats == null) {
+            stats = new CardStats();
+            CardStats old = cards.putIfAbsent(macAddress, stats);
+            if (old != null) {
+                stats = old;
+            } else if (cards.size() > maxCards) {
+                evictIdle(macAddress);
+            }
+        }
+        stats.bytes.add(size);
+        stats.nanos.add(nanos);
+        stats.lastUpdate = System.nanoTime();
+    }
+
+    /**
+     * Forgets the cards idle the longest until there are no more than
+     * maxCards, sparing the one just added
+     */
+    private void evictIdle(String added) {
+        while (cards.size() > maxCards) {
+            String oldest = null;
+            long oldestUpdate = 0;
+            for (Map.Entry<String,CardStats> entry: cards.entrySet()) {
+                long update = entry.getValue().lastUpdate;
+                if (!entry.getKey().equals(added) && (oldest == null
+                        || update - oldestUpdate < 0)) {
+                    oldest = entry.getKey();
+                    oldestUpdate = update;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            cards.remove(oldest);
+        }
+    }
+
+    public Histogram getPhaseTimes(Phase phase) {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    public Histogram getUploadTimes() {
+        return uploadTimes;
+    }
+
+    public long getUploadCount() {
+        return uploads.sum();
+    }
+
+    public long getFailedUploadCount() {
+        return failedUploads.sum();
+    }
+
+    public long getRejectedUploadCount() {
+        return rejectedUploads.sum();
+    }
+
+    public long getUploadedBytes() {
+        return bytes.sum();
+    }
+
+    public long getReceiveMillis() {
+        return millis(Phase.RECEIVE);
+    }
+
+    public long getMultipartMillis() {
+        return millis(Phase.MULTIPART);
+    }
+
+    public long getChecksumMillis() {
+        return millis(Phase.CHECKSUM);
+    }
+
+    public long getTarMillis() {
+        return millis(Phase.TAR);
+    }
+
+    public long getHandlerMillis() {
+        return millis(Phase.HANDLER);
+    }
+
+    public long getCommitMillis() {
+        return millis(Phase.COMMIT);
+    }
+
+    public long getAbortMillis() {
+        return millis(Phase.ABORT);
+    }
+
+    public long getOtherMillis() {
+        return millis(Phase.OTHER);
+    }
+
+    public String[] getCardRates() {
+        Map<String,CardStats> sorted = new TreeMap<String,CardStats>(cards);
+        String[] result = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String,CardStats> entry: sorted.entrySet()) {
+            result[i++] = entry.getKey() + ": "
+                    + entry.getValue().bytesPerSecond() + " bytes/s";
+        }
+        return result;
+    }
+
+    public String report() {
+        StringBuilder buf = new StringBuilder();
+        line(buf, "sceyefi_uploads_total", null, getUploadCount());
+        line(buf, "sceyefi_uploads_failed_total", null,
+                getFailedUploadCount());
+        line(buf, "sceyefi_uploads_rejected_total", null,
+                getRejectedUploadCount());
+        line(buf, "sceyefi_upload_bytes_total", null, getUploadedBytes());
+        summary(buf, "sceyefi_upload_seconds", null, uploadTimes);
+        for (Phase phase: PHASES) {
+            summary(buf, "sceyefi_phase_seconds",
+                    "phase=\"" + phase.name().toLowerCase() + "\"",
+                    phaseTimes[phase.ordinal()]);
+        }
+        Map<String,CardStats> sorted = new TreeMap<String,CardStats>(cards);
+        for (Map.Entry<String,CardStats> entry: sorted.entrySet()) {
+            String labels = "card=\"" + entry.getKey() + "\"";
+            CardStats stats = entry.getValue();
+            line(buf, "sceyefi_card_bytes_total", labels, stats.bytes.sum());
+            line(buf, "sceyefi_card_bytes_per_second", labels,
+                    stats.bytesPerSecond());
+        }
+        return buf.toString();
+    }
+
+    private long millis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(
+                phaseTimes[phase.ordinal()].getTotal());
+    }
+
+    private static void summary(StringBuilder buf, String name,
+            String labels, Histogram hist) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double q: QUANTILES) {
+            line(buf, name, prefix + "quantile=\"" + q + "\"",
+                    seconds(hist.getPercentile(q)));
+        }
+        line(buf, name + "_max", labels, seconds(hist.getMax()));
+        line(buf, name + "_sum", labels, seconds(hist.getTotal()));
+        line(buf, name + "_count", labels, hist.getCount());
+    }
+
+    private static void line(StringBuilder buf, String name, String labels,
+            Object value) {
+        buf.append(name);
+        if (labels != null) {
+            buf.append('{').append(labels).append('}');
+        }
+        buf.append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos/1e9;
+    }
+
+    private static class CardStats {
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private volatile long lastUpdate = System.nanoTime();
+
+        long bytesPerSecond() {
+            long time = nanos.sum();
+            return time == 0 ? 0 : (long)(bytes.sum()*1e9/time);
+        }
+    }
+}
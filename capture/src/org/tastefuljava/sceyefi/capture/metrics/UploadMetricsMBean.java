@@ -0,0 +1,39 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.metrics;
+
+/**
+ * Management interface of the upload metrics. Times are the sums of the self
+ * times of each phase over all the uploads, in milliseconds.
+ */
+public interface UploadMetricsMBean {
+    public long getUploadCount();
+    public long getFailedUploadCount();
+    public long getRejectedUploadCount();
+    public long getUploadedBytes();
+    public long getReceiveMillis();
+    public long getMultipartMillis();
+    public long getChecksumMillis();
+    public long getTarMillis();
+    public long getHandlerMillis();
+    public long getCommitMillis();
+    public long getAbortMillis();
+    public long getOtherMillis();
+    public String[] getCardRates();
+    public String report();
+}
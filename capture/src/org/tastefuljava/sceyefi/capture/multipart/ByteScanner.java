@@ -0,0 +1,110 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.multipart;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Locates a pattern, or a single byte, in byte arrays. The scanner uses the
+ * Vector API when the jdk.incubator.vector module is present (it must be
+ * added with --add-modules jdk.incubator.vector), and a scalar
+ * Boyer-Moore-Horspool search otherwise. The vector scanner can be disabled
+ * with -Dsceyefi.vector=false.
+ */
+abstract class ByteScanner {
+    private static final Logger LOG
+            = Logger.getLogger(ByteScanner.class.getName());
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final Constructor<?> VECTOR_CONSTRUCTOR
+            = vectorConstructor();
+
+    protected final byte[] pattern;
+
+    static ByteScanner forPattern(byte[] pattern) {
+        if (VECTOR_CONSTRUCTOR != null) {
+            try {
+                return (ByteScanner)VECTOR_CONSTRUCTOR.newInstance(
+                        (Object)pattern);
+            } catch (InstantiationException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            } catch (IllegalAccessException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            } catch (InvocationTargetException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            }
+        }
+        return new HorspoolScanner(pattern);
+    }
+
+    protected ByteScanner(byte[] pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the pattern in
+     * buf[from..to[, or -1 if there is none.
+     */
+    abstract int find(byte[] buf, int from, int to);
+
+    /**
+     * Returns the index of the first b in buf[from..to[, or -1 if there is
+     * none.
+     */
+    abstract int indexOf(byte[] buf, int from, int to, byte b);
+
+    /**
+     * Returns true if the pattern occurs in buf at index i
+     */
+    protected final boolean matches(byte[] buf, int i) {
+        for (int j = pattern.length - 1; j >= 0; --j) {
+            if (buf[i + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Looked up reflectively: the Vector API is an incubator module that is
+    // not resolved by default
+    private static Constructor<?> vectorConstructor() {
+        if (!Boolean.parseBoolean(System.getProperty(
+                "sceyefi.vector", "true"))) {
+            return null;
+        }
+        if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            LOG.fine("Vector API not available, using scalar search");
+            return null;
+        }
+        try {
+            Class<?> clazz = Class.forName(
+                    ByteScanner.class.getPackage().getName()
+                    + ".VectorScanner");
+            return clazz.getDeclaredConstructor(byte[].class);
+        } catch (ClassNotFoundException ex) {
+            LOG.log(Level.WARNING, null, ex);
+        } catch (NoSuchMethodException ex) {
+            LOG.log(Level.WARNING, null, ex);
+        } catch (LinkageError ex) {
+            LOG.log(Level.WARNING, null, ex);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.multipart;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Canonical lower case names of the headers found in multipart messages, so
+ * that the usual names are not decoded and copied for each part.
+ */
+class HeaderNames {
+    static final String CONTENT_DISPOSITION = "content-disposition";
+    static final String CONTENT_TYPE = "content-type";
+    static final String CONTENT_LENGTH = "content-length";
+    static final String CONTENT_TRANSFER_ENCODING
+            = "content-transfer-encoding";
+    static final String CONTENT_ID = "content-id";
+    static final String CONTENT_DESCRIPTION = "content-description";
+
+    private static final String[] KNOWN = {
+        CONTENT_DISPOSITION, CONTENT_TYPE, CONTENT_LENGTH,
+        CONTENT_TRANSFER_ENCODING, CONTENT_ID, CONTENT_DESCRIPTION
+    };
+
+    private HeaderNames() {
+    }
+
+    /**
+     * Returns the lower case name in buf[off..off+len[; the canonical instance
+     * is returned for a known name.
+     */
+    static String lookup(byte[] buf, int off, int len, Charset charset) {
+        for (String name: KNOWN) {
+            if (matches(name, buf, off, len)) {
+                return name;
+            }
+        }
+        return new String(buf, off, len, charset).toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean matches(String name, byte[] buf, int off,
+            int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            int c = buf[off+i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
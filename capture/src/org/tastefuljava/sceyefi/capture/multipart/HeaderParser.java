@@ -17,46 +17,127 @@
  */
 package org.tastefuljava.sceyefi.capture.multipart;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Parses the headers of a part. An instance can be reused for any number of
+ * parts: the same line buffer is used each time, and the usual header names
+ * are not copied.
+ */
 public class HeaderParser {
-    private final InputStream in;
-    private final String encoding;
-    private final Map<String,List<String>> headers
-            = new LinkedHashMap<String,List<String>>();
+    private static final byte CR = '\r';
+    private static final byte[] CRLF = {CR, '\n'};
+
+    private final Charset charset;
+    private final ByteScanner scanner = ByteScanner.forPattern(CRLF);
+    private byte[] buf = new byte[128];
+    private int length;
+    private InputStream in;
+    private byte[] bytes;
+    private int pos;
+    private int end;
     private int c;
 
     public static Map<String,List<String>> parse(
             InputStream in, String encoding) throws IOException {
-        return new HeaderParser(in, encoding).parse();
+        return new HeaderParser(encoding).parse(in);
+    }
+
+    public HeaderParser(String encoding) {
+        this.charset = Charset.forName(encoding);
     }
 
-    private HeaderParser(InputStream in, String encoding)
+    /**
+     * Reads the headers up to and including the empty line that terminates
+     * them
+     */
+    public Map<String,List<String>> parse(InputStream in)
             throws IOException {
         this.in = in;
-        this.encoding = encoding;
-        readc();
+        try {
+            return parse();
+        } finally {
+            this.in = null;
+        }
+    }
+
+    /**
+     * Parses the headers in bytes[off..off+len[
+     */
+    public Map<String,List<String>> parse(byte[] bytes, int off, int len)
+            throws IOException {
+        this.bytes = bytes;
+        pos = off;
+        end = off + len;
+        try {
+            return parse();
+        } finally {
+            this.bytes = null;
+        }
     }
 
     private Map<String,List<String>> parse() throws IOException {
-        while (readHeader()) {
+        Map<String,List<String>> headers
+                = new LinkedHashMap<String,List<String>>();
+        readc();
+        while (readHeader(headers)) {
             // nothing
         }
         return headers;
     }
 
     private int readc() throws IOException {
-        c = in.read();
+        if (in != null) {
+            c = in.read();
+        } else {
+            c = pos < end ? bytes[pos++] & 0xFF : -1;
+        }
         return c;
     }
 
-    private boolean readHeader() throws IOException {
+    private void append(int b) {
+        if (length == buf.length) {
+            byte[] newBuf = new byte[2*buf.length];
+            System.arraycopy(buf, 0, newBuf, 0, length);
+            buf = newBuf;
+        }
+        buf[length++] = (byte)b;
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (length + len > buf.length) {
+            byte[] newBuf = new byte[Math.max(2*buf.length, length + len)];
+            System.arraycopy(buf, 0, newBuf, 0, length);
+            buf = newBuf;
+        }
+        System.arraycopy(b, off, buf, length, len);
+        length += len;
+    }
+
+    /**
+     * Appends c and the bytes that follow up to the next CR
+     */
+    private void appendRun() throws IOException {
+        if (bytes == null) {
+            append(c);
+        } else {
+            int start = pos - 1;
+            int cr = scanner.indexOf(bytes, pos, end, CR);
+            pos = cr < 0 ? end : cr;
+            append(bytes, start, pos - start);
+        }
+        readc();
+    }
+
+    private boolean readHeader(Map<String,List<String>> headers)
+            throws IOException {
         if (c < 0) {
             throw new IOException("Malformed headers");
         }
@@ -67,20 +148,19 @@ public class HeaderParser {
                 throw new IOException("Malformed headers");
             }
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        length = 0;
         while (c >= 0 && c != ':') {
-            baos.write(c);
+            append(c);
             readc();
         }
-        baos.close();
         if (c < 0) {
             throw new IOException("Malformed headers");
         }
-        String name = new String(baos.toByteArray(), encoding).toLowerCase();
+        String name = HeaderNames.lookup(buf, 0, length, charset);
         do {
             readc();
         } while (c == ' ' || c == '\t');
-        baos.reset();
+        length = 0;
         while (true) {
             if (c < 0) {
                 throw new IOException("Malformed headers");
@@ -90,25 +170,28 @@ public class HeaderParser {
                 if (c == '\n') {
                     readc();
                     if (c == ' ' || c == '\t') {
-                        do {
-                            readc();
-                        } while (c == ' ' && c == '\t');
+                        // folded line
+                        readc();
                     } else {
                         break;
                     }
                 }
             } else {
-                baos.write(c);
-                readc();
+                appendRun();
             }
         }
-        String value = new String(baos.toByteArray(), encoding);
+        String value = new String(buf, 0, length, charset);
         List<String> list = headers.get(name);
         if (list == null) {
-            list = new ArrayList<String>();
-            headers.put(name, list);
+            // most headers occur once
+            headers.put(name, Collections.singletonList(value));
+        } else {
+            if (list.size() == 1) {
+                list = new ArrayList<String>(list);
+                headers.put(name, list);
+            }
+            list.add(value);
         }
-        list.add(value);
         return true;
     }
 }
@@ -0,0 +1,66 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.multipart;
+
+/**
+ * The scalar scanner: a Boyer-Moore-Horspool search
+ */
+class HorspoolScanner extends ByteScanner {
+    private final int[] skip = new int[256];
+
+    HorspoolScanner(byte[] pattern) {
+        super(pattern);
+        int last = pattern.length - 1;
+        for (int i = 0; i < skip.length; ++i) {
+            skip[i] = pattern.length;
+        }
+        for (int i = 0; i < last; ++i) {
+            skip[pattern[i] & 0xFF] = last - i;
+        }
+    }
+
+    @Override
+    int find(byte[] buf, int from, int to) {
+        int last = pattern.length - 1;
+        int i = from;
+        while (i + last < to) {
+            byte b = buf[i + last];
+            if (b == pattern[last]) {
+                int j = last - 1;
+                while (j >= 0 && buf[i + j] == pattern[j]) {
+                    --j;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += skip[b & 0xFF];
+        }
+        return -1;
+    }
+
+    @Override
+    int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; ++i) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -19,166 +19,232 @@ package org.tastefuljava.sceyefi.capture.multipart;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
+import org.tastefuljava.sceyefi.capture.util.TransferSource;
 
+/**
+ * Splits a multipart stream into its parts. The stream is read in large
+ * blocks, and the delimiters (CR LF -- boundary) are located with a
+ * ByteScanner, so the bodies of the parts can be read in bulk straight out
+ * of the buffer.
+ */
 public class Multipart {
+    private static final int BUFFER_SIZE = 64*1024;
     private static final byte CR = '\r';
     private static final byte LF = '\n';
     private static final byte HYPHEN = '-';
     private static final byte[] PREFIX = {CR, LF, HYPHEN, HYPHEN};
 
     private final InputStream in;
-    private final String encoding;
-    private final byte[] boundary;
-    private final byte[] buffer = new byte[256];
-    private int head;
-    private int tail;
+    private final HeaderParser headerParser;
+    private final byte[] delimiter;
+    private final ByteScanner scanner;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    // index of the next delimiter in the buffer, or -1 if not found yet
+    private int delim = -1;
+    // no delimiter starts before this index
+    private int scanned;
     private boolean eos;
     private boolean eof;
+    private PartInputStream current;
 
     public Multipart(InputStream in, String encoding, byte[] boundary)
             throws IOException {
         this.in = in;
-        this.encoding = encoding;
-        this.boundary = new byte[PREFIX.length + boundary.length];
-        System.arraycopy(PREFIX, 0, this.boundary, 0, PREFIX.length);
-        System.arraycopy(boundary, 0, this.boundary, PREFIX.length,
+        this.headerParser = new HeaderParser(encoding);
+        this.delimiter = new byte[PREFIX.length + boundary.length];
+        System.arraycopy(PREFIX, 0, delimiter, 0, PREFIX.length);
+        System.arraycopy(boundary, 0, delimiter, PREFIX.length,
                 boundary.length);
-        // unread CR LF that may not precede the first occurrence of the
-        // boundary string
-        unread(CR);
-        unread(LF);
-        int b = read();
-        while (b != -1) {
-            b = read();
+        if (delimiter.length + 2 > BUFFER_SIZE) {
+            throw new IOException("Boundary too long");
         }
+        scanner = ByteScanner.forPattern(delimiter);
+        // CR LF that may not precede the first occurrence of the boundary
+        // string
+        buffer[limit++] = CR;
+        buffer[limit++] = LF;
+        // skip the preamble
+        new PartInputStream().close();
     }
 
     public Part nextPart() throws IOException {
+        if (current != null) {
+            current.close();
+        }
         if (eof) {
             return null;
+        } else if (eos && pos == limit) {
+            // Nothing left to read, but the last boundary was not found
+            throw new IOException("Malformed multipart stream");
         }
-        InputStream stream = nextStream();
+        current = new PartInputStream();
         Map<String,List<String>> headers
-                = HeaderParser.parse(stream, encoding);
-        return new Part(headers, stream);
+                = headerParser.parse(current);
+        return new Part(headers, current);
     }
 
-    private InputStream nextStream() throws IOException {
-        if (eof) {
-            return null;
-        } else if (eos && head == tail) {
-            // Nothing left to read, but the last boundary was not found
-            throw new IOException("Malformed multipard stream");
-        }
-        return new InputStream() {
-            boolean ended;
-
-            @Override
-            public int read() throws IOException {
-                if (ended) {
-//                    throw new IOException("Malformed multipart stream");
-                    return -1;
-                }
-                int result = Multipart.this.read();
-                ended = result < 0;
-                return result;
+    /**
+     * Returns the number of bytes of the current part that can be read from
+     * the buffer at pos, or -1 at the end of the part.
+     */
+    private int readable() throws IOException {
+        while (true) {
+            if (delim < 0) {
+                search();
             }
-
-            @Override
-            public void close() throws IOException {
-                while (!ended) {
-                    read();
-                }
+            if (delim > pos) {
+                return delim - pos;
+            } else if (delim == pos) {
+                return endOfPart();
+            }
+            int count = (eos ? limit : scanned) - pos;
+            if (count > 0) {
+                return count;
+            } else if (eos) {
+                return -1;
             }
-        };
+            fill();
+        }
     }
 
-    private int readByte() throws IOException {
-        if (eof) {
-            // We shouldn't be reading after the last boundary was found
-            throw new IOException("Malformed multipard stream");
+    /**
+     * Called when a delimiter is at pos: it ends the part if followed by
+     * CR LF, or by -- for the last part; otherwise it's part of the data.
+     */
+    private int endOfPart() throws IOException {
+        int len = delimiter.length;
+        while (limit - pos < len + 2 && !eos) {
+            fill();
         }
-        if (head != tail) {
-            int result = buffer[head] & 0xFF;
-            ++head;
-            if (head == buffer.length) {
-                head = 0;
+        delim = -1;
+        if (limit - pos >= len + 2) {
+            byte b1 = buffer[pos + len];
+            byte b2 = buffer[pos + len + 1];
+            if (b1 == CR && b2 == LF) {
+                // End of a part
+                pos += len + 2;
+                scanned = pos;
+                return -1;
+            } else if (b1 == HYPHEN && b2 == HYPHEN) {
+                // End of last part
+                pos += len + 2;
+                scanned = pos;
+                eof = true;
+                return -1;
             }
-            return result;
-        } else if (eos) {
-            return -1;
-        } else {
-            int result = in.read();
-            if (result < 0) {
-                eos = true;
-            }
-            return result;
         }
+        scanned = pos + 1;
+        return 1;
     }
 
-    private void unread(byte b) throws IOException {
-        buffer[tail] = b;
-        ++tail;
-        if (tail == buffer.length) {
-            tail = 0;
-        }
-        if (head == tail) {
-            throw new IOException("Buffer overflow");
+    private void search() {
+        int from = Math.max(scanned, pos);
+        delim = scanner.find(buffer, from, limit);
+        if (delim < 0) {
+            scanned = Math.max(from, limit - delimiter.length + 1);
         }
     }
 
-    private void unread(byte[] data, int offs, int len) throws IOException {
-        int end = offs + len;
-        for (int i = offs; i < end; ++i) {
-            unread(data[i]);
+    private void fill() throws IOException {
+        if (pos > 0) {
+            // only the bytes that may start a delimiter are left
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            scanned -= pos;
+            if (delim >= 0) {
+                delim -= pos;
+            }
+            pos = 0;
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eos = true;
+        } else {
+            limit += n;
         }
     }
 
-    private int read() throws IOException {
-        int b = readByte();
-        int pos = 0;
-        while (pos < boundary.length && b == (boundary[pos] &0xFF)) {
-            ++pos;
-            b = readByte();
+    private class PartInputStream extends InputStream
+            implements TransferSource {
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            if (ended) {
+                return -1;
+            }
+            int n = readable();
+            if (n < 0) {
+                ended = true;
+                return -1;
+            }
+            return buffer[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (ended) {
+                return -1;
+            }
+            int n = readable();
+            if (n < 0) {
+                ended = true;
+                return -1;
+            }
+            n = Math.min(n, len);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
         }
-        if (pos == 0) {
-            return b;
-        } else if (pos == boundary.length) {
-            if (b == CR) {
-                b = readByte();
-                if (b == LF) {
-                    // End of a part
-                    return -1;
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = 0;
+            while (skipped < count && !ended) {
+                int n = readable();
+                if (n < 0) {
+                    ended = true;
                 } else {
-                    unread(boundary, 0, pos);
-                    unread(CR);
-                    if (b >= 0) {
-                        unread((byte)b);
-                    }
-                    return readByte();
+                    n = (int)Math.min(n, count - skipped);
+                    pos += n;
+                    skipped += n;
                 }
-            } else if (b == HYPHEN) {
-                b = readByte();
-                if (b == HYPHEN) {
-                    // End of last part
-                    eof = true;
-                    return -1;
+            }
+            return skipped;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            return transferTo(out, Long.MAX_VALUE);
+        }
+
+        public long transferTo(OutputStream out, long count)
+                throws IOException {
+            long total = 0;
+            while (total < count && !ended) {
+                int n = readable();
+                if (n < 0) {
+                    ended = true;
                 } else {
-                    unread(boundary, 0, pos);
-                    unread(HYPHEN);
-                    if (b >= 0) {
-                        unread((byte)b);
-                    }
-                    return readByte();
+                    n = (int)Math.min(n, count - total);
+                    out.write(buffer, pos, n);
+                    pos += n;
+                    total += n;
                 }
             }
+            return total;
         }
-        unread(boundary, 0, pos);
-        if (b >= 0) {
-            unread((byte)b);
+
+        @Override
+        public void close() throws IOException {
+            skip(Long.MAX_VALUE);
         }
-        return readByte();
     }
 }
@@ -0,0 +1,278 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A push-style multipart decoder: where Multipart pulls from an InputStream,
+ * the decoder is fed chunks of any size as they arrive, and reports the
+ * parts to a listener. The state of the delimiter match is kept from one
+ * chunk to the next, and the bodies are passed to the listener as views of
+ * the chunks, so that nothing is allocated for each byte.
+ */
+public class MultipartDecoder {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte HYPHEN = '-';
+    private static final byte[] PREFIX = {CR, LF, HYPHEN, HYPHEN};
+    private static final int MAX_HEADERS_SIZE = 16*1024;
+
+    private static final int PREAMBLE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int DELIMITER = 3;
+    private static final int EPILOGUE = 4;
+
+    private final HeaderParser headerParser;
+    private final MultipartListener listener;
+    private final byte[] delimiter;
+    private final int[] failure;
+    private final ByteScanner scanner;
+    private final ByteBuffer delimiterBuffer;
+    private final ByteBuffer pending = ByteBuffer.allocate(2);
+    private byte[] headers = new byte[256];
+    private int headersLength;
+    private int state = PREAMBLE;
+    // number of bytes of the delimiter matched so far
+    private int matched;
+    // bytes that followed a delimiter in DELIMITER state
+    private int afterCount;
+    private byte after;
+    private boolean inPart;
+
+    public MultipartDecoder(byte[] boundary, String encoding,
+            MultipartListener listener) {
+        this.headerParser = new HeaderParser(encoding);
+        this.listener = listener;
+        delimiter = new byte[PREFIX.length + boundary.length];
+        System.arraycopy(PREFIX, 0, delimiter, 0, PREFIX.length);
+        System.arraycopy(boundary, 0, delimiter, PREFIX.length,
+                boundary.length);
+        delimiterBuffer = ByteBuffer.wrap(delimiter);
+        scanner = ByteScanner.forPattern(delimiter);
+        // Knuth-Morris-Pratt failure function
+        failure = new int[delimiter.length];
+        int k = 0;
+        for (int i = 1; i < delimiter.length; ++i) {
+            while (k > 0 && delimiter[i] != delimiter[k]) {
+                k = failure[k-1];
+            }
+            if (delimiter[i] == delimiter[k]) {
+                ++k;
+            }
+            failure[i] = k;
+        }
+        // CR LF that may not precede the first occurrence of the boundary
+        // string
+        matched = 2;
+    }
+
+    /**
+     * Returns true when the last boundary has been decoded
+     */
+    public boolean isComplete() {
+        return state == EPILOGUE;
+    }
+
+    /**
+     * Decodes all the remaining bytes of the chunk
+     */
+    public void decode(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            switch (state) {
+                case PREAMBLE:
+                case BODY:
+                    scan(chunk);
+                    break;
+                case HEADERS:
+                    readHeaders(chunk);
+                    break;
+                case DELIMITER:
+                    readDelimiterEnd(chunk);
+                    break;
+                default:
+                    // ignore the epilogue
+                    chunk.position(chunk.limit());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Called at the end of the input
+     */
+    public void finish() throws IOException {
+        if (state != EPILOGUE) {
+            throw new IOException("Malformed multipart stream");
+        }
+    }
+
+    private void scan(ByteBuffer chunk) throws IOException {
+        int p = chunk.position();
+        int limit = chunk.limit();
+        int run = p;
+        while (p < limit) {
+            byte b;
+            if (matched == 0) {
+                // only a CR can start a delimiter
+                p = indexOfCR(chunk, p, limit);
+                if (p < 0) {
+                    p = limit;
+                    break;
+                }
+                emit(chunk, run, p);
+                b = CR;
+            } else {
+                b = chunk.get(p);
+                while (matched > 0 && delimiter[matched] != b) {
+                    // these bytes can't start a delimiter any more
+                    int keep = failure[matched-1];
+                    emitDelimiter(matched - keep);
+                    matched = keep;
+                }
+            }
+            ++p;
+            if (delimiter[matched] == b) {
+                ++matched;
+                run = p;
+                if (matched == delimiter.length) {
+                    matched = 0;
+                    state = DELIMITER;
+                    chunk.position(p);
+                    return;
+                }
+            } else {
+                run = p - 1;
+            }
+        }
+        emit(chunk, run, p);
+        chunk.position(p);
+    }
+
+    private int indexOfCR(ByteBuffer chunk, int from, int to) {
+        if (chunk.hasArray()) {
+            int offset = chunk.arrayOffset();
+            int i = scanner.indexOf(chunk.array(), offset + from,
+                    offset + to, CR);
+            return i < 0 ? -1 : i - offset;
+        }
+        for (int i = from; i < to; ++i) {
+            if (chunk.get(i) == CR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void readDelimiterEnd(ByteBuffer chunk) throws IOException {
+        byte b = chunk.get();
+        if (afterCount == 0) {
+            after = b;
+            afterCount = 1;
+            return;
+        }
+        afterCount = 0;
+        if (after == CR && b == LF) {
+            // End of a part
+            if (inPart) {
+                listener.partEnd();
+            }
+            inPart = true;
+            state = HEADERS;
+            headersLength = 0;
+            listener.partStart();
+        } else if (after == HYPHEN && b == HYPHEN) {
+            // End of last part
+            if (inPart) {
+                listener.partEnd();
+                inPart = false;
+            }
+            state = EPILOGUE;
+        } else {
+            // not a delimiter after all
+            state = inPart ? BODY : PREAMBLE;
+            emitDelimiter(delimiter.length);
+            pending.clear();
+            pending.put(after).put(b).flip();
+            decode(pending);
+        }
+    }
+
+    private void readHeaders(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (headersLength == headers.length) {
+                if (headersLength >= MAX_HEADERS_SIZE) {
+                    throw new IOException("Part headers too long");
+                }
+                byte[] newHeaders = new byte[2*headers.length];
+                System.arraycopy(headers, 0, newHeaders, 0, headersLength);
+                headers = newHeaders;
+            }
+            byte b = chunk.get();
+            headers[headersLength++] = b;
+            if (b == LF && endOfHeaders()) {
+                Map<String,List<String>> map
+                        = headerParser.parse(headers, 0, headersLength);
+                for (Map.Entry<String,List<String>> entry: map.entrySet()) {
+                    for (String value: entry.getValue()) {
+                        listener.header(entry.getKey(), value);
+                    }
+                }
+                state = BODY;
+                return;
+            }
+        }
+    }
+
+    private boolean endOfHeaders() {
+        int n = headersLength;
+        if (n == 2) {
+            return headers[0] == CR;
+        }
+        return n >= 4 && headers[n-2] == CR && headers[n-3] == LF
+                && headers[n-4] == CR;
+    }
+
+    private void emit(ByteBuffer chunk, int from, int to)
+            throws IOException {
+        if (to > from && state == BODY) {
+            int position = chunk.position();
+            int limit = chunk.limit();
+            chunk.limit(to);
+            chunk.position(from);
+            try {
+                listener.bodyChunk(chunk);
+            } finally {
+                chunk.limit(limit);
+                chunk.position(position);
+            }
+        }
+    }
+
+    private void emitDelimiter(int length) throws IOException {
+        if (state == BODY) {
+            delimiterBuffer.clear();
+            delimiterBuffer.limit(length);
+            listener.bodyChunk(delimiterBuffer);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the parts decoded by a MultipartDecoder
+ */
+public interface MultipartListener {
+    public void partStart() throws IOException;
+
+    /**
+     * Called for each header of the part, after partStart(); the names are
+     * in lower case
+     */
+    public void header(String name, String value) throws IOException;
+
+    /**
+     * Called with the bytes of the body between position and limit. The
+     * buffer belongs to the decoder, or to the caller of decode(): the bytes
+     * must be consumed or copied before returning.
+     */
+    public void bodyChunk(ByteBuffer data) throws IOException;
+
+    public void partEnd() throws IOException;
+}
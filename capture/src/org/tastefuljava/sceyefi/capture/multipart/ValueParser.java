@@ -18,94 +18,180 @@
 package org.tastefuljava.sceyefi.capture.multipart;
 
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
+/**
+ * Parses header values such as: form-data; name="pics"; filename="a.txt".
+ * An instance is a view over a value: the parameters are looked up in the
+ * original string, and only the value that is returned is copied. The same
+ * instance can be reset to view another value.
+ */
 public class ValueParser {
-    private char chars[];
+    private String s;
     private int pos;
+    // bounds of the last parameter read by next()
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+    private boolean hasValue;
+    private StringBuilder buf;
 
     public static Map<String,String> parse(String s) {
-        return new ValueParser(s).parse();
+        ValueParser parser = new ValueParser(s);
+        Map<String,String> result = new HashMap<String,String>();
+        while (parser.next()) {
+            String name = parser.text(parser.nameStart, parser.nameEnd)
+                    .toLowerCase(Locale.ROOT);
+            if (!parser.hasValue) {
+                result.put("", name);
+            } else {
+                result.put(name,
+                        parser.text(parser.valueStart, parser.valueEnd));
+            }
+        }
+        return result;
     }
 
-    private ValueParser(char chars[]) {
-        this.chars = chars;
+    public ValueParser() {
     }
 
-    private ValueParser(String s) {
-        this(s.toCharArray());
+    public ValueParser(String s) {
+        this.s = s;
     }
 
-    private Map<String,String> parse() {
-        Map<String,String> result = new HashMap<String,String>();
-        while (pos < chars.length) {
-            skipSpaces();
-            if (pos >= chars.length) {
+    public ValueParser reset(String s) {
+        this.s = s;
+        return this;
+    }
+
+    /**
+     * Returns the value without its parameters, in lower case
+     */
+    public String getValue() {
+        pos = 0;
+        if (s == null || !next() || hasValue) {
+            return null;
+        }
+        return text(nameStart, nameEnd).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the value of the parameter with the given lower case name, or
+     * null if it is not present
+     */
+    public String getParameter(String name) {
+        if (s == null) {
+            return null;
+        }
+        pos = 0;
+        while (next()) {
+            if (hasValue && nameEnd - nameStart == name.length()
+                    && s.regionMatches(true, nameStart, name, 0,
+                            name.length())) {
+                return text(valueStart, valueEnd);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the next parameter, and sets the bounds of its name and value
+     */
+    private boolean next() {
+        skipSpaces();
+        if (pos >= s.length()) {
+            return false;
+        }
+        nameStart = pos;
+        nameEnd = pos;
+        char c = ' ';
+        while (pos < s.length()) {
+            c = s.charAt(pos++);
+            if (c == '=' || c == ';') {
                 break;
             }
-            StringBuilder buf = new StringBuilder();
-            int nameEnd = 0;
-            char c = ' ';
-            while (pos < chars.length) {
-                c = chars[pos++];
-                if (c == '=' || c == ';') {
-                    break;
-                }                
-                if (c == '"') {
-                    quotedString(buf);
-                    nameEnd = buf.length();
-                } else {
-                    buf.append(c);
-                    if (!Character.isWhitespace(c)) {
-                        nameEnd = buf.length();
-                    }
-                }
+            if (c == '"') {
+                skipQuotedString();
+                nameEnd = pos;
+            } else if (!Character.isWhitespace(c)) {
+                nameEnd = pos;
             }
-            
-            String name = buf.substring(0, nameEnd).toLowerCase();
+        }
+        hasValue = c == '=';
+        if (hasValue) {
             skipSpaces();
-            if (c != '=') {
-                result.put("", name);
-            } else {
-                buf.setLength(0);
-                int valEnd = 0;
-                while (pos < chars.length) {
-                    c = chars[pos++];
-                    if (c == ';') {
-                        break;
-                    }
-                    if (c == '"') {
-                        quotedString(buf);
-                        valEnd = buf.length();
-                    } else {
-                        buf.append(c);
-                        if (!Character.isWhitespace(c)) {
-                            valEnd = buf.length();
-                        }
-                    }
+            valueStart = pos;
+            valueEnd = pos;
+            while (pos < s.length()) {
+                c = s.charAt(pos++);
+                if (c == ';') {
+                    break;
+                }
+                if (c == '"') {
+                    skipQuotedString();
+                    valueEnd = pos;
+                } else if (!Character.isWhitespace(c)) {
+                    valueEnd = pos;
                 }
-                String value = buf.substring(0, valEnd);
-                result.put(name.toLowerCase(), value);
             }
         }
-        return result;
+        return true;
     }
 
     private void skipSpaces() {
-        while (pos < chars.length && Character.isWhitespace(chars[pos])) {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
             ++pos;
         }
     }
 
-    private void quotedString(StringBuilder buf) {
-        while (pos < chars.length) {
-            char c = chars[pos++];
+    private void skipQuotedString() {
+        while (pos < s.length()) {
+            char c = s.charAt(pos++);
             if (c == '"') {
                 break;
-            } else if (c == '\\' && pos < chars.length) {
-                c = chars[pos++];
+            } else if (c == '\\' && pos < s.length()) {
+                ++pos;
+            }
+        }
+    }
+
+    /**
+     * Returns s[start..end[ without the quotes and escapes
+     */
+    private String text(int start, int end) {
+        int quote = s.indexOf('"', start);
+        if (quote < 0 || quote >= end) {
+            return s.substring(start, end);
+        }
+        int escape = s.indexOf('\\', start);
+        if (quote == start && s.indexOf('"', start+1) == end-1
+                && (escape < 0 || escape >= end)) {
+            // a simple quoted string
+            return s.substring(start+1, end-1);
+        }
+        if (buf == null) {
+            buf = new StringBuilder();
+        }
+        buf.setLength(0);
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i++);
+            if (c != '"') {
+                buf.append(c);
+                continue;
+            }
+            while (i < end) {
+                c = s.charAt(i++);
+                if (c == '"') {
+                    break;
+                } else if (c == '\\' && i < end) {
+                    c = s.charAt(i++);
+                }
+                buf.append(c);
             }
-            buf.append(c);
         }
+        return buf.toString();
     }
 }
@@ -0,0 +1,84 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.multipart;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vector scanner compares a whole vector of bytes (32 with AVX2, 64 with
+ * AVX-512, 16 with NEON) at a time. To find the pattern, the first and the
+ * last byte of the pattern are compared with two overlapping vectors; only
+ * the blocks where both match at the same position are rescanned, with a
+ * scalar comparison. The masks are only tested for any match: extracting
+ * the positions from a mask is not intrinsified by Java 17.
+ */
+class VectorScanner extends ByteScanner {
+    private static final VectorSpecies<Byte> SPECIES
+            = ByteVector.SPECIES_PREFERRED;
+
+    VectorScanner(byte[] pattern) {
+        super(pattern);
+    }
+
+    @Override
+    int find(byte[] buf, int from, int to) {
+        int last = pattern.length - 1;
+        byte first = pattern[0];
+        byte lastByte = pattern[last];
+        int step = SPECIES.length();
+        int i = from;
+        for (; i + last + step <= to; i += step) {
+            VectorMask<Byte> candidates = ByteVector.fromArray(SPECIES, buf, i)
+                    .eq(first)
+                    .and(ByteVector.fromArray(SPECIES, buf, i + last)
+                            .eq(lastByte));
+            if (candidates.anyTrue()) {
+                for (int k = i; k < i + step; ++k) {
+                    if (buf[k] == first && matches(buf, k)) {
+                        return k;
+                    }
+                }
+            }
+        }
+        for (; i + last < to; ++i) {
+            if (buf[i] == first && matches(buf, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int indexOf(byte[] buf, int from, int to, byte b) {
+        int step = SPECIES.length();
+        int i = from;
+        for (; i + step <= to; i += step) {
+            if (ByteVector.fromArray(SPECIES, buf, i).eq(b).anyTrue()) {
+                break;
+            }
+        }
+        for (; i < to; ++i) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
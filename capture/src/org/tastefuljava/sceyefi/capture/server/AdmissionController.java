@@ -0,0 +1,136 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of uploads processed at the same time. An upload first
+ * enters globally: when maxActive uploads are in progress, it waits in a
+ * queue of at most maxQueued uploads, for at most maxWait milliseconds.
+ * Once the card is known, the upload must also enter for the card, which
+ * never waits. A limit of 0 means no limit.
+ */
+class AdmissionController {
+    private final int maxActive;
+    private final int maxPerCard;
+    private final int maxQueued;
+    private final long maxWait;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<String,Integer> perCard = new HashMap<String,Integer>();
+    private int active;
+    private int queued;
+
+    AdmissionController(int maxActive, int maxPerCard, int maxQueued,
+            long maxWait) {
+        this.maxActive = maxActive;
+        this.maxPerCard = maxPerCard;
+        this.maxQueued = maxQueued;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Returns false if the upload is rejected, either because the queue is
+     * full or because no upload completed in time
+     */
+    boolean enter() throws InterruptedException {
+        if (maxActive <= 0) {
+            return true;
+        }
+        lock.lock();
+        try {
+            // don't overtake the uploads already waiting
+            if (active < maxActive && queued == 0) {
+                ++active;
+                return true;
+            }
+            if (queued >= maxQueued) {
+                return false;
+            }
+            ++queued;
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+                while (active >= maxActive) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = available.awaitNanos(nanos);
+                }
+                ++active;
+                return true;
+            } finally {
+                --queued;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void leave() {
+        if (maxActive <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            --active;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean enterCard(String macAddress) {
+        if (maxPerCard <= 0) {
+            return true;
+        }
+        lock.lock();
+        try {
+            Integer count = perCard.get(macAddress);
+            int n = count == null ? 0 : count;
+            if (n >= maxPerCard) {
+                return false;
+            }
+            perCard.put(macAddress, n+1);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void leaveCard(String macAddress) {
+        if (maxPerCard <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            Integer count = perCard.get(macAddress);
+            if (count == null || count <= 1) {
+                perCard.remove(macAddress);
+            } else {
+                perCard.put(macAddress, count-1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -17,36 +17,38 @@
  */
 package org.tastefuljava.sceyefi.capture.server;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.OutputStream;
+import org.tastefuljava.sceyefi.capture.util.TransferSource;
+import org.tastefuljava.sceyefi.capture.util.Transfers;
 
-public class ChecksumInputStream extends InputStream {
+public class ChecksumInputStream extends InputStream
+        implements TransferSource {
     private InputStream in;
-    private int count;
-    private int lobyte;
-    private int sum;
-    private MessageDigest digest;
+    private final IntegrityChecksum checksum;
     private boolean eof = false;
 
     public ChecksumInputStream(InputStream in) {
-        try {
-            this.in = in;
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException(ex.getMessage());
-        }
+        this(in, new IntegrityChecksum());
+    }
+
+    /**
+     * Creates a stream that continues the given checksum, which may already
+     * hold the sums of the blocks received by a previous attempt
+     */
+    ChecksumInputStream(InputStream in, IntegrityChecksum checksum) {
+        this.in = in;
+        this.checksum = checksum;
     }
 
     public byte[] checksum(byte[] key) throws IOException {
+        byte[] buf = new byte[4096];
         while (!eof) {
-            read();
-        }
-        while (count != 0) {
-            processByte(0);
+            read(buf, 0, buf.length);
         }
-        return digest.digest(key);
+        return checksum.digest(key);
     }
 
     @Override
@@ -56,28 +58,42 @@ public class ChecksumInputStream extends InputStream {
             eof = true;
             return b;
         }
-        processByte(b);
+        checksum.update(b);
         return b;
     }
 
-    private void processByte(int b) {
-        ++count;
-        if (count%2 != 0) {
-            lobyte = b;
-        } else {
-            sum += lobyte | (b << 8);
-            if (count == 512) {
-                int hiword = sum >>> 16;
-                while (hiword != 0) {
-                    sum = (sum & 0xFFFF) + hiword;
-                    hiword = sum >>> 16;
-                }
-                sum ^= 0xFFFF;
-                digest.update((byte)(sum & 0xFF));
-                digest.update((byte)(sum >>> 8));
-                sum = 0;
-                count = 0;
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n < 0) {
+            eof = true;
+            return n;
+        }
+        checksum.update(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        return transferTo(out, Long.MAX_VALUE);
+    }
+
+    /**
+     * The checksum is computed on the side, as the bytes are written to out
+     */
+    public long transferTo(final OutputStream out, long count)
+            throws IOException {
+        long n = Transfers.transfer(in, new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len)
+                    throws IOException {
+                checksum.update(b, off, len);
+                out.write(b, off, len);
             }
+        }, count);
+        if (n < count) {
+            eof = true;
         }
+        return n;
     }
 }
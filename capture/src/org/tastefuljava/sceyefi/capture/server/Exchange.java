@@ -0,0 +1,38 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import com.sun.net.httpserver.Headers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A single HTTP request/response exchange, independent of the transport.
+ */
+interface Exchange {
+    public String getRequestMethod();
+    public String getRequestPath();
+    public Headers getRequestHeaders();
+    public InputStream getRequestBody();
+    public Headers getResponseHeaders();
+    public void sendResponseHeaders(int status, long length)
+            throws IOException;
+    public OutputStream getResponseBody();
+    public void close();
+}
@@ -18,141 +18,284 @@
 package org.tastefuljava.sceyefi.capture.server;
 
 import com.sun.net.httpserver.Headers;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Reader;
-import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.Namespace;
-import org.jdom.input.SAXBuilder;
-import org.jdom.output.Format;
-import org.jdom.output.XMLOutputter;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
 import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.metrics.Phase;
+import org.tastefuljava.sceyefi.capture.metrics.PhaseClock;
+import org.tastefuljava.sceyefi.capture.metrics.PhaseInputStream;
+import org.tastefuljava.sceyefi.capture.metrics.UploadMetrics;
 import org.tastefuljava.sceyefi.capture.multipart.Multipart;
 import org.tastefuljava.sceyefi.capture.multipart.Part;
 import org.tastefuljava.sceyefi.capture.multipart.ValueParser;
 import org.tastefuljava.sceyefi.capture.spi.EyeFiHandler;
+import org.tastefuljava.sceyefi.capture.util.BufferPool;
 import org.tastefuljava.sceyefi.capture.util.Bytes;
-import org.tastefuljava.sceyefi.capture.util.LogWriter;
 
 public class EyeFiServer {
     private static final Logger LOG
             = Logger.getLogger(EyeFiServer.class.getName());
 
-    private static final int EYEFI_PORT = 59278;
-    private static final int WORKERS = 2;
     private static final String MAIN_CONTEXT = "/api/soap/eyefilm/v1";
     private static final String UPLOAD_CONTEXT = "/api/soap/eyefilm/v1/upload";
-    private static final Namespace EYEFI_NAMESPACE = Namespace.getNamespace(
-                    "ns1", "http://localhost/api/soap/eyefilm");
+    private static final String METRICS_CONTEXT = "/metrics";
+    private static final int RESPONSE_BUFFER_SIZE = 1024;
+    private static final int MAX_RESPONSE_BUFFERS = 64;
 
-    private final byte[] snonce = Bytes.randomBytes(16);
-    private final String snonceStr = Bytes.bin2hex(snonce);
     private final EyeFiConf conf;
     private final ExecutorService executor;
-    private final HttpServer httpServer;
+    private final ScheduledExecutorService scheduler;
+    private final Transport transport;
     private final EyeFiHandler handler;
-    private int lastFileId;
+    private final AdmissionController admission;
+    private final String retryAfter;
+    private final SessionTable sessions;
+    // null if uploads cannot be resumed
+    private final PartialUploadStore partials;
+    private final UploadPipeline pipeline;
+    private final UploadMetrics metrics = new UploadMetrics();
+    private final BufferPool responseBuffers = new BufferPool(
+            RESPONSE_BUFFER_SIZE, MAX_RESPONSE_BUFFERS, false);
+    private ObjectName metricsName;
 
     public static EyeFiServer start(EyeFiConf conf, EyeFiHandler handler)
             throws IOException {
-        return new EyeFiServer(conf, handler);
+        return start(conf, ServerConf.load(), handler);
     }
 
-    private EyeFiServer(EyeFiConf conf, EyeFiHandler handler)
-            throws IOException {
+    public static EyeFiServer start(EyeFiConf conf, ServerConf serverConf,
+            EyeFiHandler handler) throws IOException {
+        return new EyeFiServer(conf, serverConf, handler);
+    }
+
+    private EyeFiServer(EyeFiConf conf, ServerConf serverConf,
+            EyeFiHandler handler) throws IOException {
         this.conf = conf;
         this.handler = handler;
-        InetSocketAddress addr = new InetSocketAddress(EYEFI_PORT);
-        httpServer = HttpServer.create(addr, 0);
-        httpServer.createContext(MAIN_CONTEXT, new HttpHandler() {
-            public void handle(HttpExchange exchange) throws IOException {
-                handleControl(exchange);
-            }
-        });
-        httpServer.createContext(UPLOAD_CONTEXT, new HttpHandler() {
-            public void handle(HttpExchange exchange) throws IOException {
-                handleUpload(exchange);
+        admission = new AdmissionController(serverConf.getMaxUploads(),
+                serverConf.getMaxUploadsPerCard(),
+                serverConf.getMaxQueuedUploads(),
+                serverConf.getQueueTimeout()*1000L);
+        retryAfter = Integer.toString(serverConf.getRetryAfter());
+        long sessionTimeout = serverConf.getSessionTimeout()*1000L;
+        sessions = new SessionTable(sessionTimeout);
+        long partialTimeout = serverConf.getPartialTimeout()*1000L;
+        partials = serverConf.getResume()
+                ? new PartialUploadStore(serverConf.getPartialDir(),
+                        partialTimeout)
+                : null;
+        boolean started = false;
+        executor = createExecutor(serverConf);
+        pipeline = createPipeline(serverConf);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "eyefi-housekeeping");
+                thread.setDaemon(true);
+                return thread;
             }
         });
-        boolean started = false;
-        executor = Executors.newFixedThreadPool(WORKERS);
         try {
-            httpServer.setExecutor(executor);
-            httpServer.start();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sessions.evictIdle();
+                }
+            }, sessionTimeout/2, sessionTimeout/2, TimeUnit.MILLISECONDS);
+            if (partials != null) {
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        partials.purge();
+                    }
+                }, 0, partialTimeout/2, TimeUnit.MILLISECONDS);
+            }
+            transport = createTransport(serverConf, executor);
+            transport.createContext(MAIN_CONTEXT, new ExchangeHandler() {
+                public void handle(Exchange exchange) throws IOException {
+                    handleControl(exchange);
+                }
+            });
+            transport.createContext(UPLOAD_CONTEXT, new ExchangeHandler() {
+                public void handle(Exchange exchange) throws IOException {
+                    handleUpload(exchange);
+                }
+            });
+            transport.createContext(METRICS_CONTEXT, new ExchangeHandler() {
+                public void handle(Exchange exchange) throws IOException {
+                    handleMetrics(exchange);
+                }
+            });
+            transport.start();
+            registerMetrics();
             started = true;
             LOG.fine("Server started");
         } finally {
             if (!started) {
+                scheduler.shutdownNow();
                 executor.shutdownNow();
+                if (pipeline != null) {
+                    pipeline.close();
+                }
             }
         }
     }
 
     public void close() {
-        httpServer.removeContext(UPLOAD_CONTEXT);
-        httpServer.removeContext(MAIN_CONTEXT);
-        httpServer.stop(10);
+        unregisterMetrics();
+        transport.removeContext(METRICS_CONTEXT);
+        transport.removeContext(UPLOAD_CONTEXT);
+        transport.removeContext(MAIN_CONTEXT);
+        transport.stop(10);
+        scheduler.shutdownNow();
         executor.shutdownNow();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    private static ExecutorService createExecutor(ServerConf serverConf)
+            throws IOException {
+        String name = serverConf.getExecutor();
+        if (ServerConf.EXECUTOR_VIRTUAL.equals(name)) {
+            if (!ServerConf.TRANSPORT_NIO.equals(serverConf.getTransport())) {
+                throw new IOException(
+                        "Virtual threads require the nio transport");
+            }
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                return executor;
+            }
+            LOG.warning("Virtual threads not supported by this JVM, "
+                    + "using the fixed pool of workers");
+            return Executors.newFixedThreadPool(serverConf.getWorkers());
+        } else if (ServerConf.EXECUTOR_FIXED.equals(name)) {
+            return Executors.newFixedThreadPool(serverConf.getWorkers());
+        } else {
+            throw new IOException("Unknown executor: " + name);
+        }
     }
 
-    private void handleControl(HttpExchange exchange) throws IOException {
+    /**
+     * Returns null if the uploads are written on the threads that receive
+     * them. The writers run on virtual threads if the exchanges do,
+     * otherwise on as many platform threads as there are workers, one for
+     * each upload that can be in progress.
+     */
+    private static UploadPipeline createPipeline(ServerConf serverConf) {
+        int buffers = serverConf.getPipelineBuffers();
+        if (buffers <= 0) {
+            return null;
+        }
+        ExecutorService writers = null;
+        if (ServerConf.EXECUTOR_VIRTUAL.equals(serverConf.getExecutor())) {
+            writers = newVirtualThreadExecutor();
+        }
+        if (writers == null) {
+            writers = UploadPipeline.newWriterPool(serverConf.getWorkers());
+        }
+        return new UploadPipeline(buffers, serverConf.getPipelineBufferSize(),
+                writers);
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task, or null if
+     * the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively: virtual threads need Java 21
+        try {
+            Method method = Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)method.invoke(null);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        } catch (IllegalAccessException ex) {
+            LOG.log(Level.WARNING, null, ex);
+            return null;
+        } catch (InvocationTargetException ex) {
+            LOG.log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    private static Transport createTransport(ServerConf serverConf,
+            ExecutorService executor) throws IOException {
+        InetSocketAddress addr = new InetSocketAddress(serverConf.getPort());
+        String name = serverConf.getTransport();
+        if (ServerConf.TRANSPORT_NIO.equals(name)) {
+            BufferPool pool = new BufferPool(serverConf.getBufferSize(),
+                    serverConf.getMaxPooledBuffers(), true);
+            return new NioTransport(addr, executor, pool,
+                    serverConf.getEventLoops(), serverConf.getIdleTimeout(),
+                    serverConf.getBodyBuffers(),
+                    serverConf.getMaxRequestSize()*1024L*1024L);
+        } else if (ServerConf.TRANSPORT_HTTP.equals(name)) {
+            return new HttpServerTransport(addr, executor);
+        } else {
+            throw new IOException("Unknown transport: " + name);
+        }
+    }
+
+    private void handleControl(Exchange exchange) throws IOException {
         try {
             Headers reqHeaders = exchange.getRequestHeaders();
             logHeaders(Level.FINE, reqHeaders);
-            SAXBuilder builder = new SAXBuilder();
-            Document request;
+            SoapRequest request;
             InputStream in = exchange.getRequestBody();
             try {
-                request = builder.build(in);
+                request = SoapReader.read(in);
             } finally {
                 in.close();
             }
-            logXML(Level.FINE, request);
-            Document response = handleRequest(request);
-            ByteArrayOutputStream bao = new ByteArrayOutputStream();
-            logXML(Level.FINE, response);
-            writeXML(response, bao, false);
-            bao.close();
-            Headers headers = exchange.getResponseHeaders();
-            headers.set("Content-Type", "text/xml; charset=\"utf-8\"");
-            exchange.sendResponseHeaders(200, bao.size());
-            OutputStream out = exchange.getResponseBody();
-            try {
-                bao.writeTo(out);
-            } finally {
-                out.close();
-            }
+            LOG.log(Level.FINE, "Request: {0}", request);
+            handleRequest(request, exchange);
         } catch (IOException ex) {
             LOG.log(Level.SEVERE, null, ex);
             throw ex;
         } catch (RuntimeException ex) {
             LOG.log(Level.SEVERE, null, ex);
             throw ex;
-        } catch (JDOMException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            throw new IOException(ex.getMessage());
         }
     }
 
-    private void handleUpload(HttpExchange exchange) throws IOException {
+    private void handleUpload(Exchange exchange) throws IOException {
+        boolean admitted;
+        try {
+            admitted = admission.enter();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Upload interrupted");
+        }
+        if (!admitted) {
+            LOG.warning("Upload rejected: too many uploads in progress");
+            reject(exchange);
+            return;
+        }
+        PhaseClock clock = new PhaseClock();
+        boolean success = false;
+        boolean rejected = false;
         try {
             Headers reqHeaders = exchange.getRequestHeaders();
             logHeaders(Level.FINE, reqHeaders);
@@ -160,57 +303,69 @@ public class EyeFiServer {
             if (!contentType.startsWith("multipart/")) {
                 throw new IOException("Multipart content required");
             }
-            Map<String,String> parms = ValueParser.parse(contentType);
-            String encoding = parms.get("charset");
+            ValueParser parms = new ValueParser(contentType);
+            String encoding = parms.getParameter("charset");
             if (encoding == null) {
                 encoding = "ISO-8859-1";
             }
-            boolean success;
-            InputStream in = exchange.getRequestBody();
+            InputStream in = new PhaseInputStream(exchange.getRequestBody(),
+                    clock, Phase.RECEIVE);
             try {
-                byte boundary[] = parms.get("boundary").getBytes(encoding);
+                byte boundary[] = parms.getParameter("boundary")
+                        .getBytes(encoding);
                 Multipart mp = new Multipart(in, encoding, boundary);
-                success = processParts(mp, encoding);
+                success = processParts(mp, encoding, clock);
+            } catch (UploadRejectedException ex) {
+                LOG.log(Level.WARNING, "Upload rejected: {0}",
+                        ex.getMessage());
+                rejected = true;
+                reject(exchange);
+                return;
             } finally {
-                in.close();
-            }
-            Element resp = new Element("UploadPhotoResponse", EYEFI_NAMESPACE);
-            resp.addContent(new Element("success").setText(
-                    success ? "true" : "false"));
-            Document response = SoapEnvelope.wrap(resp);
-            ByteArrayOutputStream bao = new ByteArrayOutputStream();
-            logXML(Level.FINE, response);
-            writeXML(response, bao, false);
-            bao.close();
-            Headers headers = exchange.getResponseHeaders();
-            headers.set("Content-Type", "text/xml; charset=\"utf-8\"");
-            exchange.sendResponseHeaders(200, bao.size());
-            OutputStream out = exchange.getResponseBody();
-            try {
-                bao.writeTo(out);
-            } finally {
-                out.close();
+                // closing the body may read what is left of it, which
+                // a rejected upload must not wait for
+                if (!rejected) {
+                    in.close();
+                }
             }
+            sendResponse(exchange, SoapTemplate.UPLOAD_PHOTO,
+                    success ? "true" : "false");
         } catch (IOException ex) {
             LOG.log(Level.SEVERE, null, ex);
             throw ex;
         } catch (RuntimeException ex) {
             LOG.log(Level.SEVERE, null, ex);
             throw ex;
-        } catch (JDOMException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            throw new IOException(ex.getMessage());
+        } finally {
+            admission.leave();
+            if (!rejected) {
+                metrics.record(clock, success);
+            }
         }
     }
 
-    private boolean processParts(Multipart mp, String encoding)
-            throws IOException, JDOMException {
+    /**
+     * Tells the card to retry later, without reading the rest of the body:
+     * the connection is closed after the response
+     */
+    private void reject(Exchange exchange) throws IOException {
+        metrics.recordRejected();
+        exchange.getResponseHeaders().set("Retry-After", retryAfter);
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(503, -1);
+        exchange.close();
+    }
+
+    private boolean processParts(Multipart mp, String encoding,
+            PhaseClock clock) throws IOException {
         boolean success;
-        Uploader uploader = new Uploader(conf, handler);
+        Uploader uploader = new Uploader(conf, handler, partials, admission,
+                metrics, clock, pipeline);
+        ValueParser parser = new ValueParser();
         try {
             for (Part part = mp.nextPart(); part != null;
                     part = mp.nextPart()) {
-                processPart(uploader, part, encoding);
+                processPart(uploader, part, parser, encoding, clock);
             }
         } finally {
             success = uploader.close();
@@ -218,22 +373,25 @@ public class EyeFiServer {
         return success;
     }
 
-    private void processPart(Uploader uploader, Part part, String encoding)
-            throws JDOMException, IOException {
+    private void processPart(Uploader uploader, Part part,
+            ValueParser parser, String encoding, PhaseClock clock)
+            throws IOException {
         logHeaders(Level.FINE, part.getHeaders());
-        InputStream is = part.getBody();
+        PhaseInputStream is = new PhaseInputStream(part.getBody(), clock,
+                Phase.MULTIPART);
         try {
             String cd = part.getFirstValue("content-disposition");
-            Map<String,String> cdParms = ValueParser.parse(cd);
-            String fieldName = cdParms.get("name");
+            String fieldName = parser.reset(cd).getParameter("name");
             if (fieldName.equals("SOAPENVELOPE")) {
-                SAXBuilder builder = new SAXBuilder();
-                Document request = builder.build(is);
-                logXML(Level.FINE, request);
-                Element req = SoapEnvelope.strip(request);
-                uploader.start(
-                        childText(req, "macaddress"),
-                        childText(req, "filename"));
+                SoapRequest req = SoapReader.read(is);
+                LOG.log(Level.FINE, "Request: {0}", req);
+                // keep the session alive
+                Session session = req.getMacAddress() == null
+                        ? null : sessions.get(req.getMacAddress());
+                long offset = session == null || req.getFileName() == null
+                        ? 0 : session.takeOffset(req.getFileName());
+                uploader.start(req.getMacAddress(), req.getFileName(),
+                        parseSize(req.getFileSize()), offset);
             } else if (fieldName.equals("FILENAME")) {
                 uploader.upload(is);
             } else if (fieldName.equals("INTEGRITYDIGEST")) {
@@ -258,102 +416,160 @@ public class EyeFiServer {
         }
     }
 
-    private Document handleRequest(Document request)
-            throws IOException, JDOMException {
-        Element req = SoapEnvelope.strip(request);
-        String action = req.getName();
-        Element resp;
+    private void handleMetrics(Exchange exchange) throws IOException {
+        byte[] data = metrics.report().getBytes("UTF-8");
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, data.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void registerMetrics() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(UploadMetrics.OBJECT_NAME);
+            mbs.registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException ex) {
+            // another server in the same VM
+            LOG.log(Level.WARNING, "Could not register the metrics MBean: {0}",
+                    ex.getMessage());
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName != null) {
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                mbs.unregisterMBean(metricsName);
+            } catch (JMException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            }
+            metricsName = null;
+        }
+    }
+
+    private void handleRequest(SoapRequest req, Exchange exchange)
+            throws IOException {
+        String action = req.getAction();
         if ("StartSession".equals(action)) {
-            resp = startSession(req);
+            startSession(req, exchange);
         } else if ("GetPhotoStatus".equals(action)) {
-            resp = getPhotoStatus(req);
+            getPhotoStatus(req, exchange);
         } else if ("MarkLastPhotoInRoll".equals(action)) {
-            resp = markLastPhotoInRoll(req);
+            markLastPhotoInRoll(req, exchange);
         } else {
             throw new IOException("Invalid action: " + action);
         }
-        return SoapEnvelope.wrap(resp);
     }
 
-    private Element startSession(Element req)
-            throws JDOMException, IOException {
-        String macAddress = childText(req, "macaddress");
+    private void startSession(SoapRequest req, Exchange exchange)
+            throws IOException {
+        StartSessionEvent event = new StartSessionEvent();
+        event.begin();
+        String macAddress = req.getMacAddress();
         EyeFiCard card = conf.getCard(macAddress);
         if (card == null) {
             throw new IOException("Card not found " + macAddress);
         }
-        byte[] cnonce = Bytes.hex2bin(childText(req, "cnonce"));
-        String transferModeStr = childText(req, "transfermode");
-        String timestampStr = childText(req, "transfermodetimestamp");
+        byte[] cnonce = Bytes.hex2bin(req.getCnonce());
+        String transferModeStr = req.getTransferMode();
+        String timestampStr = req.getTransferModeTimestamp();
 
         byte[] credential = Bytes.md5(
                 Bytes.hex2bin(macAddress), cnonce, card.getUploadKey());
         String credentialStr = Bytes.bin2hex(credential);
+        Session session = sessions.start(card, cnonce);
+        String snonceStr = Bytes.bin2hex(session.getSnonce());
 
-        Element resp = new Element("StartSessionResponse", EYEFI_NAMESPACE);
-        resp.addContent(new Element("credential").setText(credentialStr));
-        resp.addContent(new Element("snonce").setText(snonceStr));
-        resp.addContent(
-                new Element("transfermode").setText(transferModeStr));
-        resp.addContent(
-                new Element("transfermodetimestamp").setText(timestampStr));
-        resp.addContent(new Element("upsyncallowed").setText("false"));
-        return resp;
+        sendResponse(exchange, SoapTemplate.START_SESSION, credentialStr,
+                snonceStr, transferModeStr, timestampStr, "false");
+        event.macAddress = macAddress;
+        event.commit();
     }
 
-    private Element getPhotoStatus(Element req) throws IOException {
-        String macAddress = childText(req, "macaddress");
+    private void getPhotoStatus(SoapRequest req, Exchange exchange)
+            throws IOException {
+        GetPhotoStatusEvent event = new GetPhotoStatusEvent();
+        event.begin();
+        String macAddress = req.getMacAddress();
         EyeFiCard card = conf.getCard(macAddress);
         if (card == null) {
             throw new IOException("Card not found " + macAddress);
         }
-        byte[] credential = Bytes.md5(
-                Bytes.hex2bin(macAddress), card.getUploadKey(), snonce);
+        Session session = sessions.get(macAddress);
+        if (session == null) {
+            throw new IOException("No session for card " + macAddress);
+        }
+        byte[] credential = Bytes.md5(Bytes.hex2bin(macAddress),
+                card.getUploadKey(), session.getSnonce());
         String expectedCred = Bytes.bin2hex(credential);
-        String actualCred = childText(req, "credential");
-        if (!actualCred.equals(expectedCred)) {
+        String actualCred = req.getCredential();
+        if (!expectedCred.equals(actualCred)) {
             throw new IOException("Invalid credential send by the card");
         }
-        Element resp = new Element("GetPhotoStatusResponse", EYEFI_NAMESPACE);
-        int fileId = ++lastFileId;
-        resp.addContent(new Element("fileid").setText("" + fileId));
-        resp.addContent(new Element("offset").setText("0"));
-        return resp;
-    }
-
-    private Element markLastPhotoInRoll(Element req) {
-        Element resp = new Element("MarkLastPhotoInRollResponse", EYEFI_NAMESPACE);
-        return resp;
+        int fileId = session.nextFileId();
+        long size = parseSize(req.getFileSize());
+        long offset = partials == null ? 0
+                : partials.getOffset(macAddress, req.getFileName(), size);
+        // the upload resumes at exactly this offset
+        session.setOffset(req.getFileName(), offset);
+        sendResponse(exchange, SoapTemplate.GET_PHOTO_STATUS,
+                Integer.toString(fileId), Long.toString(offset));
+        event.macAddress = macAddress;
+        event.fileName = req.getFileName();
+        event.bytes = size;
+        event.offset = offset;
+        event.commit();
     }
 
-    private static void writeXML(Document doc, OutputStream out,
-            boolean pretty) throws IOException {
-        XMLOutputter outp = new XMLOutputter();
-        outp.setFormat(pretty
-                ? Format.getPrettyFormat()
-                : Format.getCompactFormat());
-        outp.output(doc, out);
+    private void markLastPhotoInRoll(SoapRequest req, Exchange exchange)
+            throws IOException {
+        if (req.getMacAddress() != null) {
+            sessions.get(req.getMacAddress());
+        }
+        sendResponse(exchange, SoapTemplate.MARK_LAST_PHOTO_IN_ROLL);
     }
 
-    private static void logXML(Level level, Document doc) throws IOException {
-        if (LOG.isLoggable(level)) {
-            Writer out = new LogWriter(LOG, level);
+    private void sendResponse(Exchange exchange, SoapTemplate template,
+            String... values) throws IOException {
+        ByteBuffer buf = responseBuffers.acquire();
+        try {
+            ByteBuffer data = template.write(buf, values);
+            int length = data.position();
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Response: {0}",
+                        new String(data.array(), 0, length, "UTF-8"));
+            }
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "text/xml; charset=\"utf-8\"");
+            exchange.sendResponseHeaders(200, length);
+            OutputStream out = exchange.getResponseBody();
             try {
-                XMLOutputter outp = new XMLOutputter();
-                outp.setFormat(Format.getPrettyFormat());
-                outp.output(doc, out);
+                out.write(data.array(), 0, length);
             } finally {
                 out.close();
             }
+        } finally {
+            responseBuffers.release(buf);
         }
     }
 
-    private static String childText(Element elm, String name) {
-        String s = elm.getChildText(name);
-        if (s != null) {
-            return s;
+    private static long parseSize(String s) {
+        if (s == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException ex) {
+            LOG.log(Level.WARNING, "Invalid file size: {0}", s);
+            return -1;
         }
-        return elm.getChildText(name, elm.getNamespace());
     }
 
     private static void logHeaders(Level level,
@@ -0,0 +1,46 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.tastefuljava.sceyefi.GetPhotoStatus")
+@Label("Get Photo Status")
+@Description("A card announces an archive")
+@Category({"Sceye-Fi", "Upload"})
+class GetPhotoStatusEvent extends Event {
+    @Label("MAC Address")
+    String macAddress;
+
+    @Label("File Name")
+    String fileName;
+
+    @Label("File Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Offset")
+    @Description("Offset at which the upload can be resumed")
+    @DataAmount
+    long offset;
+}
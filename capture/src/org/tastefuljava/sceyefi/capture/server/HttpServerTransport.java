@@ -0,0 +1,103 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * Transport based on the JDK HTTP server; each exchange runs on a thread of
+ * the executor from the beginning of the request to the end of the response.
+ */
+class HttpServerTransport implements Transport {
+    private final HttpServer httpServer;
+
+    HttpServerTransport(InetSocketAddress addr, Executor executor)
+            throws IOException {
+        httpServer = HttpServer.create(addr, 0);
+        httpServer.setExecutor(executor);
+    }
+
+    public void createContext(String path, final ExchangeHandler handler) {
+        httpServer.createContext(path, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handler.handle(new HttpServerExchange(exchange));
+            }
+        });
+    }
+
+    public void removeContext(String path) {
+        httpServer.removeContext(path);
+    }
+
+    public void start() {
+        httpServer.start();
+    }
+
+    public void stop(int delay) {
+        httpServer.stop(delay);
+    }
+
+    private static class HttpServerExchange implements Exchange {
+        private final HttpExchange exchange;
+
+        HttpServerExchange(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        public String getRequestMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        public String getRequestPath() {
+            return exchange.getRequestURI().getPath();
+        }
+
+        public Headers getRequestHeaders() {
+            return exchange.getRequestHeaders();
+        }
+
+        public InputStream getRequestBody() {
+            return exchange.getRequestBody();
+        }
+
+        public Headers getResponseHeaders() {
+            return exchange.getResponseHeaders();
+        }
+
+        public void sendResponseHeaders(int status, long length)
+                throws IOException {
+            exchange.sendResponseHeaders(status, length);
+        }
+
+        public OutputStream getResponseBody() {
+            return exchange.getResponseBody();
+        }
+
+        public void close() {
+            exchange.close();
+        }
+    }
+}
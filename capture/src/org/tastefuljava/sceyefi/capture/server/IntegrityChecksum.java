@@ -0,0 +1,215 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The Eye-Fi integrity checksum: the data is split into 512-byte blocks, the
+ * ones-complement sum of the little-endian 16-bit words of each block is
+ * complemented, and the MD5 of these block sums followed by the upload key
+ * is the digest.
+ * Whole blocks are summed eight bytes at a time: the four words of a long
+ * are added in two longs of two 32-bit lanes, which can't overflow within a
+ * block, and the carries are folded once per block. The block sums are
+ * passed to the digest in batches.
+ */
+class IntegrityChecksum {
+    static final int BLOCK_SIZE = 512;
+    private static final int MAX_SUMS = 256;
+    private static final long LANES = 0x0000FFFF0000FFFFL;
+    private static final VarHandle LONGS
+            = MethodHandles.byteArrayViewVarHandle(long[].class,
+                    ByteOrder.LITTLE_ENDIAN);
+
+    private final MessageDigest digest;
+    private final byte[] sums = new byte[2*MAX_SUMS];
+    private int sumCount;
+    // number of bytes of the current block
+    private int count;
+    private int lobyte;
+    private int sum;
+    private byte[] scratch;
+
+    IntegrityChecksum() {
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Continues a checksum from the sums of the blocks already received
+     */
+    void resume(byte[] blockSums) {
+        digest.update(blockSums);
+    }
+
+    void update(int b) {
+        ++count;
+        if (count%2 != 0) {
+            lobyte = b;
+        } else {
+            sum += lobyte | (b << 8);
+            if (count == BLOCK_SIZE) {
+                endBlock(sum);
+            }
+            flushSums();
+        }
+    }
+
+    void update(byte[] b, int off, int len) {
+        int end = off + len;
+        int i = off;
+        if (count%2 != 0 && i < end) {
+            ++count;
+            sum += lobyte | ((b[i++] & 0xFF) << 8);
+            if (count == BLOCK_SIZE) {
+                endBlock(sum);
+            }
+        }
+        // words up to the end of the current block
+        if (count != 0) {
+            int n = Math.min(BLOCK_SIZE - count, end - i) & ~1;
+            i = addWords(b, i, n);
+            if (count == BLOCK_SIZE) {
+                endBlock(sum);
+            }
+        }
+        // whole blocks
+        while (count == 0 && end - i >= BLOCK_SIZE) {
+            endBlock(blockSum(b, i));
+            i += BLOCK_SIZE;
+        }
+        // the start of the last block
+        i = addWords(b, i, (end - i) & ~1);
+        if (i < end) {
+            ++count;
+            lobyte = b[i] & 0xFF;
+        }
+        flushSums();
+    }
+
+    void update(ByteBuffer buf) {
+        int len = buf.remaining();
+        if (buf.hasArray()) {
+            update(buf.array(), buf.arrayOffset() + buf.position(), len);
+            buf.position(buf.position() + len);
+        } else {
+            if (scratch == null) {
+                scratch = new byte[16*BLOCK_SIZE];
+            }
+            while (buf.hasRemaining()) {
+                int n = Math.min(scratch.length, buf.remaining());
+                buf.get(scratch, 0, n);
+                update(scratch, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Pads the last block with zeros, and returns the digest
+     */
+    byte[] digest(byte[] key) {
+        if (count != 0) {
+            update(new byte[BLOCK_SIZE - count], 0, BLOCK_SIZE - count);
+        }
+        return digest.digest(key);
+    }
+
+    private int addWords(byte[] b, int off, int len) {
+        int end = off + len;
+        int s = sum;
+        for (int i = off; i < end; i += 2) {
+            s += (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8);
+        }
+        sum = s;
+        count += len;
+        return end;
+    }
+
+    private static int blockSum(byte[] b, int off) {
+        long even = 0;
+        long odd = 0;
+        int end = off + BLOCK_SIZE;
+        for (int i = off; i < end; i += 8) {
+            long v = (long)LONGS.get(b, i);
+            even += v & LANES;
+            odd += (v >>> 16) & LANES;
+        }
+        return lanesSum(even, odd);
+    }
+
+    /**
+     * Returns the sum of the whole block at off; buf must be little-endian
+     */
+    static int blockSum(ByteBuffer buf, int off) {
+        long even = 0;
+        long odd = 0;
+        int end = off + BLOCK_SIZE;
+        for (int i = off; i < end; i += 8) {
+            long v = buf.getLong(i);
+            even += v & LANES;
+            odd += (v >>> 16) & LANES;
+        }
+        return lanesSum(even, odd);
+    }
+
+    private static int lanesSum(long even, long odd) {
+        long s = (even & 0xFFFFFFFFL) + (even >>> 32)
+                + (odd & 0xFFFFFFFFL) + (odd >>> 32);
+        return (int)s;
+    }
+
+    /**
+     * Folds the carries of the sum of a block, and returns its complement
+     */
+    static int fold(int blockSum) {
+        int s = blockSum;
+        int hiword = s >>> 16;
+        while (hiword != 0) {
+            s = (s & 0xFFFF) + hiword;
+            hiword = s >>> 16;
+        }
+        return s ^ 0xFFFF;
+    }
+
+    private void endBlock(int blockSum) {
+        int s = fold(blockSum);
+        sums[2*sumCount] = (byte)s;
+        sums[2*sumCount+1] = (byte)(s >>> 8);
+        if (++sumCount == MAX_SUMS) {
+            flushSums();
+        }
+        sum = 0;
+        count = 0;
+    }
+
+    private void flushSums() {
+        if (sumCount > 0) {
+            digest.update(sums, 0, 2*sumCount);
+            sumCount = 0;
+        }
+    }
+}
@@ -0,0 +1,916 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import com.sun.net.httpserver.Headers;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.tastefuljava.sceyefi.capture.util.BufferPool;
+
+/**
+ * Selector-based transport. A small number of event loops read the requests
+ * into pooled buffers without blocking; as soon as the headers of a request
+ * have been received, it is handed to the executor, and its body is passed
+ * to the handler a buffer at a time while it arrives. A connection stops
+ * being read when bodyBuffers buffers are waiting for the handler, so that
+ * a slow handler holds back the card instead of filling the memory. The
+ * response is written back by the event loop.
+ * <p>Pipelined requests are not supported: when a request arrives together
+ * with the previous one, the connection is closed after the first response.
+ */
+class NioTransport implements Transport {
+    private static final Logger LOG
+            = Logger.getLogger(NioTransport.class.getName());
+
+    private static final long SELECT_TIMEOUT = 1000L;
+    private static final String CHARSET = "ISO-8859-1";
+
+    private static final int READING_HEADERS = 0;
+    private static final int PROCESSING = 1;
+    private static final int WRITING = 2;
+
+    private final InetSocketAddress addr;
+    private final Executor executor;
+    private final BufferPool pool;
+    private final long idleTimeout;
+    private final EventLoop[] loops;
+    private final int bodyBuffers;
+    private final long maxRequestSize;
+    private final Map<String,ExchangeHandler> contexts
+            = new ConcurrentHashMap<String,ExchangeHandler>();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    NioTransport(InetSocketAddress addr, Executor executor, BufferPool pool,
+            int eventLoops, int idleTimeout, int bodyBuffers,
+            long maxRequestSize) {
+        this.addr = addr;
+        this.executor = executor;
+        this.pool = pool;
+        this.idleTimeout = idleTimeout*1000L;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        this.bodyBuffers = Math.max(1, bodyBuffers);
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    public void createContext(String path, ExchangeHandler handler) {
+        contexts.put(path, handler);
+    }
+
+    public void removeContext(String path) {
+        contexts.remove(path);
+    }
+
+    public void start() throws IOException {
+        boolean started = false;
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(addr);
+            for (int i = 0; i < loops.length; ++i) {
+                loops[i] = new EventLoop(i);
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            for (EventLoop loop: loops) {
+                loop.thread.start();
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                for (EventLoop loop: loops) {
+                    if (loop != null) {
+                        loop.selector.close();
+                    }
+                }
+                serverChannel.close();
+            }
+        }
+    }
+
+    public void stop(int delay) {
+        try {
+            serverChannel.close();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, null, ex);
+        }
+        long limit = System.currentTimeMillis() + delay*1000L;
+        try {
+            while (activeExchanges.get() > 0
+                    && System.currentTimeMillis() < limit) {
+                Thread.sleep(50);
+            }
+            for (EventLoop loop: loops) {
+                loop.shutdown();
+            }
+            for (EventLoop loop: loops) {
+                loop.thread.join(1000);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ExchangeHandler findHandler(String path) {
+        String best = null;
+        for (String context: contexts.keySet()) {
+            if (path.startsWith(context)
+                    && (best == null || context.length() > best.length())) {
+                best = context;
+            }
+        }
+        return best == null ? null : contexts.get(best);
+    }
+
+    private void accept() throws IOException {
+        for (SocketChannel channel = serverChannel.accept(); channel != null;
+                channel = serverChannel.accept()) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.register(channel);
+        }
+    }
+
+    private static int headerEnd(ByteBuffer buf, int end) {
+        for (int i = 3; i < end; ++i) {
+            if (buf.get(i) == '\n' && buf.get(i-1) == '\r'
+                    && buf.get(i-2) == '\n' && buf.get(i-3) == '\r') {
+                return i+1;
+            }
+        }
+        return -1;
+    }
+
+    private static String reasonPhrase(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 413:
+                return "Payload Too Large";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 501:
+                return "Not Implemented";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "";
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks
+                = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean closed;
+        private long lastIdleCheck;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "eyefi-nio-" + index);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        Connection con = new Connection(EventLoop.this,
+                                channel);
+                        con.key = channel.register(selector,
+                                SelectionKey.OP_READ, con);
+                    } catch (IOException ex) {
+                        LOG.log(Level.WARNING, null, ex);
+                        closeQuietly(channel);
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select(SELECT_TIMEOUT);
+                    for (Runnable task = tasks.poll(); task != null;
+                            task = tasks.poll()) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it
+                            = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            // cancelled in the meantime
+                        } else if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            ((Connection)key.attachment()).handle(key);
+                        }
+                    }
+                    closeIdleConnections();
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            } finally {
+                for (SelectionKey key: selector.keys()) {
+                    Object att = key.attachment();
+                    if (att instanceof Connection) {
+                        ((Connection)att).close();
+                    }
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (idleTimeout <= 0 || now - lastIdleCheck < SELECT_TIMEOUT) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key: selector.keys()) {
+                Object att = key.attachment();
+                if (att instanceof Connection) {
+                    Connection con = (Connection)att;
+                    // a connection is not idle while its handler is busy,
+                    // unless the handler waits for the card
+                    if ((con.state != PROCESSING || con.reading)
+                            && now - con.lastActivity > idleTimeout) {
+                        LOG.fine("Closing idle connection");
+                        con.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private int state = READING_HEADERS;
+        private long lastActivity = System.currentTimeMillis();
+        private ByteBuffer buffer;
+        // the body being received, and the number of bytes still expected
+        private BodyInputStream body;
+        private long remaining;
+        // true while the body is read from the channel
+        private boolean reading;
+        private String method;
+        private String path;
+        private Headers headers;
+        private boolean keepAlive;
+        private ByteBuffer[] output;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                lastActivity = System.currentTimeMillis();
+                if (key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Connection closed", ex);
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            if (state != READING_HEADERS && !reading) {
+                // selected before the connection was held back
+                return;
+            }
+            if (buffer == null) {
+                buffer = pool.acquire();
+                if (state != READING_HEADERS && remaining < buffer.capacity()) {
+                    buffer.limit((int)remaining);
+                }
+            }
+            int n = channel.read(buffer);
+            if (n < 0) {
+                close();
+            } else if (state == READING_HEADERS) {
+                processHeaders();
+            } else {
+                remaining -= n;
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer buf = buffer;
+                    buffer = null;
+                    buf.flip();
+                    if (!body.offer(buf)) {
+                        // the handler has fallen behind
+                        reading = false;
+                    }
+                }
+                if (remaining == 0) {
+                    body.end();
+                    reading = false;
+                }
+                updateInterest();
+            }
+        }
+
+        /**
+         * Called from a worker thread when the handler has caught up
+         */
+        void resumeReading() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    if (key.isValid() && state == PROCESSING
+                            && remaining > 0 && !reading) {
+                        reading = true;
+                        updateInterest();
+                    }
+                }
+            });
+        }
+
+        private void updateInterest() {
+            int ops = 0;
+            if (output != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (reading || state == READING_HEADERS) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        private void processHeaders() throws IOException {
+            int end = headerEnd(buffer, buffer.position());
+            if (end < 0) {
+                if (!buffer.hasRemaining()) {
+                    respond(431);
+                }
+                return;
+            }
+            buffer.flip();
+            if (!parseHeaders(end)) {
+                respond(400);
+                return;
+            }
+            String te = headers.getFirst("Transfer-Encoding");
+            if (te != null && !te.equalsIgnoreCase("identity")) {
+                respond(501);
+                return;
+            }
+            String cl = headers.getFirst("Content-Length");
+            long length;
+            try {
+                length = cl == null ? 0 : Long.parseLong(cl.trim());
+            } catch (NumberFormatException ex) {
+                length = -1;
+            }
+            if (length < 0) {
+                respond(400);
+                return;
+            } else if (length > maxRequestSize) {
+                respond(413);
+                return;
+            }
+            buffer.position(end);
+            if (buffer.remaining() > length) {
+                // pipelined requests are not supported
+                keepAlive = false;
+                buffer.limit(end + (int)length);
+            }
+            remaining = length - buffer.remaining();
+            ByteBuffer first = buffer;
+            buffer = null;
+            dispatch(first);
+        }
+
+        private boolean parseHeaders(int end) throws IOException {
+            byte[] bytes = new byte[end];
+            buffer.get(bytes);
+            String[] lines = new String(bytes, CHARSET).split("\r\n");
+            String[] request = lines[0].split(" ");
+            if (request.length != 3) {
+                return false;
+            }
+            method = request[0];
+            path = request[1];
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+            headers = new Headers();
+            String name = null;
+            for (int i = 1; i < lines.length; ++i) {
+                String line = lines[i];
+                if (line.length() == 0) {
+                    break;
+                } else if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+                    if (name == null) {
+                        return false;
+                    }
+                    // folded line: append to the last value
+                    List<String> values = headers.get(name);
+                    int last = values.size()-1;
+                    values.set(last, values.get(last) + " " + line.trim());
+                } else {
+                    int pos = line.indexOf(':');
+                    if (pos <= 0) {
+                        return false;
+                    }
+                    name = line.substring(0, pos).trim();
+                    headers.add(name, line.substring(pos+1).trim());
+                }
+            }
+            String con = headers.getFirst("Connection");
+            if (request[2].equals("HTTP/1.0")) {
+                keepAlive = "keep-alive".equalsIgnoreCase(con);
+            } else {
+                keepAlive = !"close".equalsIgnoreCase(con);
+            }
+            return true;
+        }
+
+        /**
+         * Hands the request to the executor; first holds the beginning of the
+         * body
+         */
+        private void dispatch(ByteBuffer first) {
+            state = PROCESSING;
+            final ExchangeHandler handler = findHandler(path);
+            if (handler == null) {
+                pool.release(first);
+                respond(404);
+                return;
+            }
+            body = new BodyInputStream(this);
+            if (first.hasRemaining()) {
+                body.offer(first);
+            } else {
+                pool.release(first);
+            }
+            if (remaining == 0) {
+                body.end();
+            }
+            reading = remaining > 0;
+            updateInterest();
+            final NioExchange exchange = new NioExchange(this, body);
+            activeExchanges.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            handler.handle(exchange);
+                        } catch (IOException ex) {
+                            LOG.log(Level.FINE, null, ex);
+                        } catch (RuntimeException ex) {
+                            LOG.log(Level.SEVERE, null, ex);
+                        } finally {
+                            exchange.close();
+                            activeExchanges.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                activeExchanges.decrementAndGet();
+                exchange.releaseBody();
+                close();
+            }
+        }
+
+        private void respond(int status) {
+            keepAlive = false;
+            reading = false;
+            write(responseHead(status, new Headers(), 0), null);
+        }
+
+        private ByteBuffer responseHead(int status, Headers respHeaders,
+                long length) {
+            StringBuilder buf = new StringBuilder();
+            buf.append("HTTP/1.1 ").append(status).append(' ')
+                    .append(reasonPhrase(status)).append("\r\n");
+            for (Map.Entry<String,List<String>> entry: respHeaders.entrySet()) {
+                for (String value: entry.getValue()) {
+                    buf.append(entry.getKey()).append(": ").append(value)
+                            .append("\r\n");
+                }
+            }
+            buf.append("Content-Length: ").append(length).append("\r\n");
+            if (!keepAlive && respHeaders.getFirst("Connection") == null) {
+                buf.append("Connection: close\r\n");
+            }
+            buf.append("\r\n");
+            try {
+                return ByteBuffer.wrap(buf.toString().getBytes(CHARSET));
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex.getMessage());
+            }
+        }
+
+        /**
+         * Called from the event loop to write the response
+         */
+        private void write(ByteBuffer head, ByteBuffer data) {
+            state = WRITING;
+            output = data == null
+                    ? new ByteBuffer[] {head}
+                    : new ByteBuffer[] {head, data};
+            try {
+                flush();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Connection closed", ex);
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            channel.write(output);
+            if (output[output.length-1].hasRemaining()) {
+                updateInterest();
+            } else if (!keepAlive) {
+                close();
+            } else {
+                output = null;
+                body = null;
+                state = READING_HEADERS;
+                lastActivity = System.currentTimeMillis();
+                updateInterest();
+            }
+        }
+
+        /**
+         * Called from a worker thread when the handler is done
+         */
+        void complete(final int status, final Headers respHeaders,
+                final byte[] data, final int length) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    if (key.isValid()) {
+                        if (remaining > 0) {
+                            // the rest of the body is not read
+                            keepAlive = false;
+                            reading = false;
+                        }
+                        if ("close".equalsIgnoreCase(
+                                respHeaders.getFirst("Connection"))) {
+                            keepAlive = false;
+                        }
+                        write(responseHead(status, respHeaders, length),
+                                ByteBuffer.wrap(data, 0, length));
+                    }
+                }
+            });
+        }
+
+        void abort() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    if (key.isValid()) {
+                        respond(500);
+                    }
+                }
+            });
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            if (buffer != null) {
+                pool.release(buffer);
+                buffer = null;
+            }
+            if (body != null) {
+                body.abort();
+            }
+        }
+    }
+
+    private class NioExchange implements Exchange {
+        private final Connection con;
+        private final String method;
+        private final String path;
+        private final Headers requestHeaders;
+        private final BodyInputStream requestBody;
+        private final Headers responseHeaders = new Headers();
+        private ResponseStream responseBody;
+        private int status = -1;
+        private boolean completed;
+
+        NioExchange(Connection con, BodyInputStream body) {
+            this.con = con;
+            this.method = con.method;
+            this.path = con.path;
+            this.requestHeaders = con.headers;
+            this.requestBody = body;
+        }
+
+        public String getRequestMethod() {
+            return method;
+        }
+
+        public String getRequestPath() {
+            return path;
+        }
+
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        public void sendResponseHeaders(int status, long length)
+                throws IOException {
+            if (this.status >= 0) {
+                throw new IOException("Headers already sent");
+            }
+            this.status = status;
+            // the response is sent in one piece when the stream is closed
+            responseBody = new ResponseStream(
+                    length > 0 && length < Integer.MAX_VALUE ? (int)length : 256);
+            if (length < 0) {
+                responseBody.close();
+            }
+        }
+
+        public OutputStream getResponseBody() {
+            return responseBody;
+        }
+
+        public void close() {
+            releaseBody();
+            if (status < 0) {
+                if (!completed) {
+                    completed = true;
+                    con.abort();
+                }
+            } else {
+                responseBody.close();
+            }
+        }
+
+        void releaseBody() {
+            requestBody.close();
+        }
+
+        private class ResponseStream extends ByteArrayOutputStream {
+            ResponseStream(int size) {
+                super(size);
+            }
+
+            @Override
+            public void close() {
+                if (!completed) {
+                    completed = true;
+                    con.complete(status, responseHeaders, buf, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * The body of a request, passed from the event loop to the handler. The
+     * event loop offers the buffers as they are filled; it stops reading the
+     * connection when bodyBuffers buffers are waiting, and the handler has
+     * it resumed once half of them have been read.
+     */
+    private class BodyInputStream extends InputStream {
+        private final Connection con;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final ArrayDeque<ByteBuffer> buffers
+                = new ArrayDeque<ByteBuffer>();
+        private ByteBuffer current;
+        private boolean eof;
+        private boolean aborted;
+        private boolean closed;
+        private boolean suspended;
+
+        BodyInputStream(Connection con) {
+            this.con = con;
+        }
+
+        /**
+         * Called from the event loop; returns false if the connection must
+         * not be read until the handler has caught up
+         */
+        boolean offer(ByteBuffer buf) {
+            lock.lock();
+            try {
+                if (closed) {
+                    pool.release(buf);
+                    return false;
+                }
+                buffers.add(buf);
+                notEmpty.signal();
+                if (buffers.size() >= bodyBuffers) {
+                    suspended = true;
+                    return false;
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called from the event loop when the whole body has been received
+         */
+        void end() {
+            lock.lock();
+            try {
+                eof = true;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called from the event loop when the connection is closed
+         */
+        void abort() {
+            lock.lock();
+            try {
+                if (!eof) {
+                    aborted = true;
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns a buffer with remaining bytes, or null at the end of the
+         * body
+         */
+        private ByteBuffer next() throws IOException {
+            if (current != null && current.hasRemaining()) {
+                return current;
+            }
+            boolean resume = false;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (current != null) {
+                    pool.release(current);
+                    current = null;
+                }
+                while (buffers.isEmpty()) {
+                    if (aborted) {
+                        throw new IOException("Connection closed");
+                    } else if (eof) {
+                        return null;
+                    }
+                    try {
+                        notEmpty.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                current = buffers.poll();
+                if (suspended && buffers.size() <= bodyBuffers/2) {
+                    suspended = false;
+                    resume = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (resume) {
+                con.resumeReading();
+            }
+            return current;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer buf = next();
+            return buf == null ? -1 : buf.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buf = next();
+            if (buf == null) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        /**
+         * Gives the buffers back to the pool; whatever has not been received
+         * yet is never read: the connection is closed after the response
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    if (current != null) {
+                        pool.release(current);
+                        current = null;
+                    }
+                    for (ByteBuffer buf: buffers) {
+                        pool.release(buf);
+                    }
+                    buffers.clear();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the block sums of the integrity checksum for data that has been
+ * spooled to a file, when an interrupted upload is resumed. The sums of the
+ * blocks don't depend on each other: they are computed in parallel, each
+ * task on its own memory-mapped segment of the file, and only the sequence
+ * of sums is then passed to MD5, in order.
+ */
+class ParallelChecksum {
+    private static final int BLOCK_SIZE = IntegrityChecksum.BLOCK_SIZE;
+    // number of blocks below which a task is not split any further (4 MB)
+    private static final int SEGMENT_BLOCKS = 8192;
+
+    private ParallelChecksum() {
+    }
+
+    /**
+     * Returns the sums of the blocks of the first length bytes of the file;
+     * length must be a multiple of the block size
+     */
+    static byte[] blockSums(FileChannel channel, long length)
+            throws IOException {
+        long blocks = length/BLOCK_SIZE;
+        if (blocks*BLOCK_SIZE != length) {
+            throw new IOException("Not a whole number of blocks: " + length);
+        }
+        if (2*blocks > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + length);
+        }
+        if (channel.size() < length) {
+            throw new IOException("Unexpected end of file");
+        }
+        byte[] sums = new byte[(int)(2*blocks)];
+        try {
+            ForkJoinPool.commonPool().invoke(
+                    new SumTask(channel, sums, 0, (int)blocks));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        return sums;
+    }
+
+    private static class SumTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // never serialized
+        private final transient FileChannel channel;
+        private final byte[] sums;
+        private final int first;
+        private final int count;
+
+        SumTask(FileChannel channel, byte[] sums, int first, int count) {
+            this.channel = channel;
+            this.sums = sums;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count > SEGMENT_BLOCKS) {
+                int half = count/2;
+                invokeAll(new SumTask(channel, sums, first, half),
+                        new SumTask(channel, sums, first + half,
+                                count - half));
+            } else if (count > 0) {
+                try {
+                    sumSegment();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+
+        private void sumSegment() throws IOException {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    (long)first*BLOCK_SIZE, (long)count*BLOCK_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            int end = count*BLOCK_SIZE;
+            int i = 2*first;
+            for (int off = 0; off < end; off += BLOCK_SIZE) {
+                int s = IntegrityChecksum.fold(
+                        IntegrityChecksum.blockSum(buf, off));
+                sums[i++] = (byte)s;
+                sums[i++] = (byte)(s >>> 8);
+            }
+        }
+    }
+}
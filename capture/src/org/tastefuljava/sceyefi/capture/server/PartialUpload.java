@@ -0,0 +1,237 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.tastefuljava.sceyefi.capture.util.TransferSource;
+import org.tastefuljava.sceyefi.capture.util.Transfers;
+
+/**
+ * An upload being received into the partial upload store. The bytes read
+ * from the card are appended to the data file, so that whatever was received
+ * before the connection dropped can be reused by the next attempt. The
+ * checksum is computed as the bytes are received; when an upload is
+ * resumed, the sums of the blocks received before are computed from the
+ * data file by a ParallelChecksum.
+ */
+class PartialUpload {
+    private static final Logger LOG
+            = Logger.getLogger(PartialUpload.class.getName());
+
+    static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PartialUploadStore store;
+    private final String key;
+    private final File dataFile;
+    private final long offset;
+    private OutputStream data;
+    private boolean closed;
+
+    PartialUpload(PartialUploadStore store, String key, File dataFile,
+            long offset) {
+        this.store = store;
+        this.key = key;
+        this.dataFile = dataFile;
+        this.offset = offset;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the checksum stream of the whole archive, given the stream of
+     * the bytes sent by the card from the offset on. The bytes previously
+     * received are read back from the data file.
+     */
+    ChecksumInputStream open(InputStream in) throws IOException {
+        truncate(dataFile, offset);
+        IntegrityChecksum checksum = new IntegrityChecksum();
+        if (offset > 0) {
+            FileChannel channel = FileChannel.open(dataFile.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                checksum.resume(ParallelChecksum.blockSums(channel, offset));
+            } finally {
+                channel.close();
+            }
+        }
+        data = new BufferedOutputStream(
+                new FileOutputStream(dataFile, true), BUFFER_SIZE);
+        return new ChecksumInputStream(new SpoolInputStream(in), checksum);
+    }
+
+    /**
+     * Returns the stream of the whole archive: the bytes previously received
+     * followed by the checksum stream returned by open().
+     */
+    InputStream archive(ChecksumInputStream stream) throws IOException {
+        if (offset == 0) {
+            return stream;
+        }
+        LOG.log(Level.FINE, "Resuming upload at offset {0}", offset);
+        // the data file is only appended to once the received bytes are read
+        return new SequenceInputStream(
+                new BoundedInputStream(new FileInputStream(dataFile), offset),
+                stream);
+    }
+
+    /**
+     * Keeps what has been received so far for a later attempt
+     */
+    void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                closeStream(data);
+            } finally {
+                store.closed(key);
+            }
+        }
+    }
+
+    /**
+     * Forgets the upload, after it has either completed or failed for good
+     */
+    void delete() {
+        close();
+        dataFile.delete();
+    }
+
+    private static void closeStream(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() > length) {
+                raf.setLength(length);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copies the bytes read to the data file
+     */
+    private class SpoolInputStream extends FilterInputStream
+            implements TransferSource {
+        SpoolInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                data.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                data.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            return transferTo(out, Long.MAX_VALUE);
+        }
+
+        public long transferTo(final OutputStream out, long count)
+                throws IOException {
+            return Transfers.transfer(in, new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    data.write(b, off, len);
+                    out.write(b, off, len);
+                }
+            }, count);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be spooled as well
+            byte[] buf = new byte[(int)Math.min(n, BUFFER_SIZE)];
+            int count = read(buf, 0, buf.length);
+            return count < 0 ? 0 : count;
+        }
+    }
+
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                --remaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int)Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
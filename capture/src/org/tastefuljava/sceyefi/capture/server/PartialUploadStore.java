@@ -0,0 +1,149 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.tastefuljava.sceyefi.capture.util.Bytes;
+
+/**
+ * The uploads that were interrupted before completion, keyed by card MAC
+ * address, archive name and archive size. For each of them, the store keeps
+ * the bytes received so far in a .part file, so that the card can resume the
+ * upload at the offset returned by GetPhotoStatus. Partial uploads that have
+ * not been touched for longer than the timeout are deleted by purge().
+ */
+class PartialUploadStore {
+    private static final Logger LOG
+            = Logger.getLogger(PartialUploadStore.class.getName());
+
+    static final String DATA_EXT = ".part";
+
+    private final File dir;
+    private final long timeout;
+    private final Set<String> openKeys = Collections.newSetFromMap(
+            new ConcurrentHashMap<String,Boolean>());
+
+    PartialUploadStore(File dir, long timeout) {
+        this.dir = dir;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the offset at which the upload of an archive can be resumed,
+     * or 0 if it has to start from the beginning.
+     */
+    long getOffset(String macAddress, String arcName, long size)
+            throws IOException {
+        if (macAddress == null || arcName == null || size <= 0) {
+            return 0;
+        }
+        String key = key(macAddress, arcName, size);
+        if (openKeys.contains(key)) {
+            // still being uploaded
+            return 0;
+        }
+        long offset = offset(key);
+        return offset < size ? offset : 0;
+    }
+
+    /**
+     * Opens the partial upload of an archive, at the offset that the card
+     * has been given by getOffset. Returns null if the archive is already
+     * being uploaded, or if the bytes before that offset are no longer
+     * there, in which case the partial upload is discarded.
+     */
+    PartialUpload open(String macAddress, String arcName, long size,
+            long offset) throws IOException {
+        String key = key(macAddress, arcName, size);
+        if (!openKeys.add(key)) {
+            LOG.log(Level.WARNING, "Archive {0} already being uploaded",
+                    arcName);
+            return null;
+        }
+        boolean done = false;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create folder " + dir);
+            }
+            File dataFile = new File(dir, key + DATA_EXT);
+            if (offset >= size || offset > offset(key)
+                    || offset%PartialUpload.BLOCK_SIZE != 0) {
+                LOG.log(Level.WARNING, "Partial upload of {0} discarded",
+                        arcName);
+                dataFile.delete();
+                return null;
+            }
+            PartialUpload partial = new PartialUpload(this, key, dataFile,
+                    offset);
+            done = true;
+            return partial;
+        } finally {
+            if (!done) {
+                openKeys.remove(key);
+            }
+        }
+    }
+
+    void closed(String key) {
+        openKeys.remove(key);
+    }
+
+    void purge() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long limit = System.currentTimeMillis() - timeout;
+        for (File file: files) {
+            String name = file.getName();
+            if (!name.endsWith(DATA_EXT)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - DATA_EXT.length());
+            if (!openKeys.contains(key) && file.lastModified() < limit) {
+                if (file.delete()) {
+                    LOG.log(Level.FINE, "Stale partial upload deleted: {0}",
+                            name);
+                }
+            }
+        }
+    }
+
+    private long offset(String key) {
+        File dataFile = new File(dir, key + DATA_EXT);
+        if (!dataFile.isFile()) {
+            return 0;
+        }
+        // only whole blocks
+        long blocks = dataFile.length()/PartialUpload.BLOCK_SIZE;
+        return blocks*PartialUpload.BLOCK_SIZE;
+    }
+
+    private static String key(String macAddress, String arcName, long size)
+            throws UnsupportedEncodingException {
+        String s = macAddress.toLowerCase() + "/" + arcName + "/" + size;
+        return Bytes.bin2hex(Bytes.md5(s.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.util.Bytes;
+
+/**
+ * The state of a card between StartSession and the end of its uploads
+ */
+class Session {
+    private final EyeFiCard card;
+    private final byte[] cnonce;
+    private final byte[] snonce = Bytes.randomBytes(16);
+    private final AtomicInteger lastFileId = new AtomicInteger();
+    // the offsets sent by GetPhotoStatus, by archive name
+    private final ConcurrentMap<String,Long> offsets
+            = new ConcurrentHashMap<String,Long>();
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    Session(EyeFiCard card, byte[] cnonce) {
+        this.card = card;
+        this.cnonce = cnonce;
+    }
+
+    EyeFiCard getCard() {
+        return card;
+    }
+
+    byte[] getCnonce() {
+        return cnonce;
+    }
+
+    byte[] getSnonce() {
+        return snonce;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    int nextFileId() {
+        return lastFileId.incrementAndGet();
+    }
+
+    /**
+     * Records the offset at which the card has been told to upload an
+     * archive
+     */
+    void setOffset(String arcName, long offset) {
+        if (offset > 0) {
+            offsets.put(arcName, offset);
+        } else {
+            offsets.remove(arcName);
+        }
+    }
+
+    /**
+     * Returns the offset at which the card uploads an archive, and forgets
+     * it
+     */
+    long takeOffset(String arcName) {
+        Long offset = offsets.remove(arcName);
+        return offset == null ? 0 : offset.longValue();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+
+/**
+ * The sessions of the cards, keyed by MAC address. A card has at most one
+ * session: a new StartSession replaces the previous one. Sessions that have
+ * not been used for longer than the timeout are evicted by evictIdle().
+ */
+class SessionTable {
+    private static final Logger LOG
+            = Logger.getLogger(SessionTable.class.getName());
+
+    private final ConcurrentMap<String,Session> sessions
+            = new ConcurrentHashMap<String,Session>();
+    private final long timeout;
+
+    SessionTable(long timeout) {
+        this.timeout = timeout;
+    }
+
+    Session start(EyeFiCard card, byte[] cnonce) {
+        Session session = new Session(card, cnonce);
+        sessions.put(card.getMacAddress(), session);
+        return session;
+    }
+
+    Session get(String macAddress) {
+        Session session = sessions.get(macAddress);
+        if (session != null) {
+            session.touch();
+        }
+        return session;
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    void evictIdle() {
+        long limit = System.currentTimeMillis() - timeout;
+        Iterator<Map.Entry<String,Session>> it
+                = sessions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String,Session> entry = it.next();
+            if (entry.getValue().getLastActivity() < limit) {
+                // only remove if not replaced in the meantime
+                if (sessions.remove(entry.getKey(), entry.getValue())) {
+                    LOG.log(Level.FINE, "Session evicted: {0}",
+                            entry.getKey());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Extracts the fields of a SOAP request with a pull parser, without building
+ * a document tree. The request is the first child of the SOAP body; its
+ * children are the fields.
+ */
+public class SoapReader {
+    private static final Logger LOG
+            = Logger.getLogger(SoapReader.class.getName());
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private SoapReader() {
+        // nothing
+    }
+
+    public static SoapRequest read(InputStream in) throws IOException {
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                return read(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    private static SoapRequest read(XMLStreamReader reader)
+            throws XMLStreamException, IOException {
+        nextElement(reader, "Envelope");
+        nextElement(reader, "Body");
+        reader.nextTag();
+        if (!reader.isStartElement()) {
+            throw new IOException("Empty SOAP body");
+        }
+        SoapRequest request = new SoapRequest(reader.getLocalName());
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            String value = reader.getElementText();
+            if (!request.setField(name, value)) {
+                LOG.log(Level.FINE, "Ignored field {0}", name);
+            }
+        }
+        return request;
+    }
+
+    private static void nextElement(XMLStreamReader reader, String name)
+            throws XMLStreamException, IOException {
+        if (reader.nextTag() != XMLStreamConstants.START_ELEMENT
+                || !name.equals(reader.getLocalName())) {
+            throw new IOException("SOAP " + name + " expected");
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
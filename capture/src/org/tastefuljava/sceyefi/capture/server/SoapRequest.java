@@ -0,0 +1,157 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+/**
+ * The fields of an Eye-Fi SOAP request, as extracted by SoapReader.
+ */
+public class SoapRequest {
+    private String action;
+    private String macAddress;
+    private String cnonce;
+    private String credential;
+    private String transferMode;
+    private String transferModeTimestamp;
+    private String fileId;
+    private String fileName;
+    private String fileSize;
+    private String fileSignature;
+    private String encryption;
+    private String flags;
+    private String mergeDelta;
+
+    SoapRequest(String action) {
+        this.action = action;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getMacAddress() {
+        return macAddress;
+    }
+
+    public String getCnonce() {
+        return cnonce;
+    }
+
+    public String getCredential() {
+        return credential;
+    }
+
+    public String getTransferMode() {
+        return transferMode;
+    }
+
+    public String getTransferModeTimestamp() {
+        return transferModeTimestamp;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getFileSize() {
+        return fileSize;
+    }
+
+    public String getFileSignature() {
+        return fileSignature;
+    }
+
+    public String getEncryption() {
+        return encryption;
+    }
+
+    public String getFlags() {
+        return flags;
+    }
+
+    public String getMergeDelta() {
+        return mergeDelta;
+    }
+
+    /**
+     * Sets the field corresponding to an element of the request. Returns
+     * false if the element is unknown.
+     */
+    boolean setField(String name, String value) {
+        if (name.equals("macaddress")) {
+            macAddress = value;
+        } else if (name.equals("cnonce")) {
+            cnonce = value;
+        } else if (name.equals("credential")) {
+            credential = value;
+        } else if (name.equals("transfermode")) {
+            transferMode = value;
+        } else if (name.equals("transfermodetimestamp")) {
+            transferModeTimestamp = value;
+        } else if (name.equals("fileid")) {
+            fileId = value;
+        } else if (name.equals("filename")) {
+            fileName = value;
+        } else if (name.equals("filesize")) {
+            fileSize = value;
+        } else if (name.equals("filesignature")) {
+            fileSignature = value;
+        } else if (name.equals("encryption")) {
+            encryption = value;
+        } else if (name.equals("flags")) {
+            flags = value;
+        } else if (name.equals("mergedelta")) {
+            mergeDelta = value;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(action);
+        buf.append('{');
+        append(buf, "macaddress", macAddress);
+        append(buf, "cnonce", cnonce);
+        append(buf, "credential", credential);
+        append(buf, "transfermode", transferMode);
+        append(buf, "transfermodetimestamp", transferModeTimestamp);
+        append(buf, "fileid", fileId);
+        append(buf, "filename", fileName);
+        append(buf, "filesize", fileSize);
+        append(buf, "filesignature", fileSignature);
+        append(buf, "encryption", encryption);
+        append(buf, "flags", flags);
+        append(buf, "mergedelta", mergeDelta);
+        buf.append('}');
+        return buf.toString();
+    }
+
+    private static void append(StringBuilder buf, String name, String value) {
+        if (value != null) {
+            if (buf.charAt(buf.length()-1) != '{') {
+                buf.append(", ");
+            }
+            buf.append(name).append('=').append(value);
+        }
+    }
+}
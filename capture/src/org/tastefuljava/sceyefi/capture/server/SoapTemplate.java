@@ -0,0 +1,201 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * A pre-serialized SOAP response. The constant parts of the document are
+ * encoded once; writing a response only copies them into a buffer with the
+ * values of the fields. The output is the same as the compact format of
+ * the JDOM XMLOutputter.
+ */
+public class SoapTemplate {
+    private static final String XML_DECL
+            = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n";
+    private static final String ENVELOPE_START
+            = "<SOAP-ENV:Envelope xmlns:SOAP-ENV="
+            + "\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<SOAP-ENV:Body>";
+    private static final String ENVELOPE_END
+            = "</SOAP-ENV:Body></SOAP-ENV:Envelope>\r\n";
+    private static final String NAMESPACE_DECL
+            = " xmlns:ns1=\"http://localhost/api/soap/eyefilm\"";
+
+    public static final SoapTemplate START_SESSION = new SoapTemplate(
+            "StartSessionResponse", "credential", "snonce", "transfermode",
+            "transfermodetimestamp", "upsyncallowed");
+    public static final SoapTemplate GET_PHOTO_STATUS = new SoapTemplate(
+            "GetPhotoStatusResponse", "fileid", "offset");
+    public static final SoapTemplate UPLOAD_PHOTO = new SoapTemplate(
+            "UploadPhotoResponse", "success");
+    public static final SoapTemplate MARK_LAST_PHOTO_IN_ROLL
+            = new SoapTemplate("MarkLastPhotoInRollResponse");
+
+    private final byte[] head;
+    private final byte[][] openTags;
+    private final byte[][] closeTags;
+    private final byte[][] emptyTags;
+    private final byte[] tail;
+
+    private SoapTemplate(String action, String... fields) {
+        String start = XML_DECL + ENVELOPE_START + "<ns1:" + action
+                + NAMESPACE_DECL;
+        if (fields.length == 0) {
+            head = utf8(start + " />");
+            tail = utf8(ENVELOPE_END);
+        } else {
+            head = utf8(start + ">");
+            tail = utf8("</ns1:" + action + ">" + ENVELOPE_END);
+        }
+        openTags = new byte[fields.length][];
+        closeTags = new byte[fields.length][];
+        emptyTags = new byte[fields.length][];
+        for (int i = 0; i < fields.length; ++i) {
+            openTags[i] = utf8("<" + fields[i] + ">");
+            closeTags[i] = utf8("</" + fields[i] + ">");
+            emptyTags[i] = utf8("<" + fields[i] + " />");
+        }
+    }
+
+    public byte[] toBytes(String... values) {
+        ByteBuffer buf = write(ByteBuffer.allocate(512), values);
+        byte[] result = new byte[buf.position()];
+        System.arraycopy(buf.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Writes the response with the given field values into buf. If the
+     * response does not fit, a larger heap buffer is allocated and returned
+     * instead. In any case, the response is between 0 and the position of
+     * the returned buffer.
+     */
+    public ByteBuffer write(ByteBuffer buf, String... values) {
+        if (values.length != openTags.length) {
+            throw new IllegalArgumentException(
+                    "Expected " + openTags.length + " values");
+        }
+        buf = put(buf, head);
+        for (int i = 0; i < values.length; ++i) {
+            String value = normalize(values[i]);
+            if (value.length() == 0) {
+                buf = put(buf, emptyTags[i]);
+            } else {
+                buf = put(buf, openTags[i]);
+                buf = putText(buf, value);
+                buf = put(buf, closeTags[i]);
+            }
+        }
+        return put(buf, tail);
+    }
+
+    private static ByteBuffer put(ByteBuffer buf, byte[] bytes) {
+        return ensureRoom(buf, bytes.length).put(bytes);
+    }
+
+    private static ByteBuffer ensureRoom(ByteBuffer buf, int room) {
+        if (buf.remaining() >= room) {
+            return buf;
+        }
+        ByteBuffer newBuf = ByteBuffer.allocate(
+                Math.max(2*buf.capacity(), buf.position() + room));
+        buf.flip();
+        return newBuf.put(buf);
+    }
+
+    private static ByteBuffer putText(ByteBuffer buf, String value) {
+        int len = value.length();
+        for (int i = 0; i < len; ++i) {
+            if (value.charAt(i) >= 0x80) {
+                return put(buf, utf8(value));
+            }
+        }
+        buf = ensureRoom(buf, len);
+        for (int i = 0; i < len; ++i) {
+            buf.put((byte)value.charAt(i));
+        }
+        return buf;
+    }
+
+    /**
+     * Normalizes the whitespaces and escapes the text the same way as the
+     * compact format of XMLOutputter
+     */
+    private static String normalize(String value) {
+        if (value == null) {
+            return "";
+        } else if (isNormal(value)) {
+            return value;
+        }
+        StringBuilder buf = new StringBuilder(value.length());
+        boolean space = false;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    space = buf.length() > 0;
+                    break;
+                default:
+                    if (space) {
+                        buf.append(' ');
+                        space = false;
+                    }
+                    if (c == '&') {
+                        buf.append("&amp;");
+                    } else if (c == '<') {
+                        buf.append("&lt;");
+                    } else if (c == '>') {
+                        buf.append("&gt;");
+                    } else {
+                        buf.append(c);
+                    }
+                    break;
+            }
+        }
+        return buf.toString();
+    }
+
+    private static boolean isNormal(String value) {
+        int len = value.length();
+        if (len == 0 || value.charAt(0) == ' '
+                || value.charAt(len-1) == ' ') {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            char c = value.charAt(i);
+            if (c == '&' || c == '<' || c == '>' || c == '\t' || c == '\n'
+                    || c == '\r' || (c == ' ' && value.charAt(i+1) == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+}
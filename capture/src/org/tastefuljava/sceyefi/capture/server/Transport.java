@@ -0,0 +1,32 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.io.IOException;
+
+/**
+ * The HTTP server that accepts the card connections and dispatches the
+ * requests to the handlers registered for a context path. As with the JDK
+ * HTTP server, the handler of the longest matching context is selected.
+ */
+interface Transport {
+    public void createContext(String path, ExchangeHandler handler);
+    public void removeContext(String path);
+    public void start() throws IOException;
+    public void stop(int delay);
+}
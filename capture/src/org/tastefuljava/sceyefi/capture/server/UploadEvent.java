@@ -0,0 +1,45 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.tastefuljava.sceyefi.Upload")
+@Label("Upload")
+@Description("Upload of an archive, from the SOAP envelope to the end of the request")
+@Category({"Sceye-Fi", "Upload"})
+class UploadEvent extends Event {
+    @Label("MAC Address")
+    String macAddress;
+
+    @Label("File Name")
+    String fileName;
+
+    @Label("Bytes")
+    @Description("Bytes received in this request")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+}
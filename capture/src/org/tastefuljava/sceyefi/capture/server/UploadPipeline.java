@@ -0,0 +1,81 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.tastefuljava.sceyefi.capture.util.BufferPipe;
+import org.tastefuljava.sceyefi.capture.util.BufferPool;
+
+/**
+ * Splits the processing of uploads in two stages: the thread of the exchange
+ * receives the archive and computes its checksum, and a writer thread reads
+ * the tar entries and passes them to the upload handler. The stages are
+ * connected by a BufferPipe, so a slow disk does not stop the network reads
+ * until the pipe is full, and a slow card does not hold the disk. The
+ * writers run on an executor of their own, which must allow one writer per
+ * upload in progress: an upload waits for its writer once the pipe is full.
+ */
+class UploadPipeline {
+    private final BufferPool pool;
+    private final int capacity;
+    private final ExecutorService writers;
+
+    /**
+     * Creates a pipeline whose writers run on the given executor, which is
+     * shut down with the pipeline
+     */
+    UploadPipeline(int buffers, int bufferSize, ExecutorService writers) {
+        this.capacity = buffers;
+        // heap buffers: the handlers are given streams, and writing from a
+        // heap array costs one copy less than from a direct buffer
+        this.pool = new BufferPool(bufferSize, 4*buffers, false);
+        this.writers = writers;
+    }
+
+    /**
+     * Creates a pool of platform threads for the writers
+     */
+    static ExecutorService newWriterPool(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "eyefi-writer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    BufferPipe newPipe() {
+        return new BufferPipe(pool, capacity);
+    }
+
+    <T> Future<T> submit(Callable<T> writer) {
+        return writers.submit(writer);
+    }
+
+    void close() {
+        writers.shutdownNow();
+    }
+}
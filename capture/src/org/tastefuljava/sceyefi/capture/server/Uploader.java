@@ -19,15 +19,26 @@ package org.tastefuljava.sceyefi.capture.server;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
 import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.metrics.Phase;
+import org.tastefuljava.sceyefi.capture.metrics.PhaseClock;
+import org.tastefuljava.sceyefi.capture.metrics.PhaseInputStream;
+import org.tastefuljava.sceyefi.capture.metrics.UploadMetrics;
 import org.tastefuljava.sceyefi.capture.spi.EyeFiHandler;
 import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
 import org.tastefuljava.sceyefi.capture.tar.TarEntry;
 import org.tastefuljava.sceyefi.capture.tar.TarReader;
+import org.tastefuljava.sceyefi.capture.util.BufferPipe;
 import org.tastefuljava.sceyefi.capture.util.Bytes;
+import org.tastefuljava.sceyefi.capture.util.Transfers;
 
 /**
  * Handles the upload of a tar file
@@ -38,18 +49,51 @@ class Uploader {
 
     private final EyeFiConf conf;
     private final EyeFiHandler handler;
+    // null if uploads cannot be resumed
+    private final PartialUploadStore partials;
+    private final AdmissionController admission;
+    private final UploadMetrics metrics;
+    private final PhaseClock clock;
+    private final UploadPipeline pipeline;
+    private final UploadEvent uploadEvent = new UploadEvent();
+    private DigestEvent digestEvent;
+    private String macAddress;
+    private String arcName;
     private EyeFiCard card;
+    private String admittedCard;
+    private PartialUpload partial;
+    private boolean complete;
+    private long startTime;
+    private long received;
     private UploadHandler upload;
     private boolean failed;
+    // true if the beginning of a resumed archive is no longer there
+    private boolean lost;
     private boolean success;
     private byte[] calculatedDigest;
 
-    Uploader(EyeFiConf conf, EyeFiHandler handler) {
+    Uploader(EyeFiConf conf, EyeFiHandler handler,
+            PartialUploadStore partials, AdmissionController admission,
+            UploadMetrics metrics, PhaseClock clock,
+            UploadPipeline pipeline) {
         this.conf = conf;
         this.handler = handler;
+        this.partials = partials;
+        this.admission = admission;
+        this.metrics = metrics;
+        this.clock = clock;
+        this.pipeline = pipeline;
     }
 
-    void start(String macAddress, String arcName) {
+    /**
+     * Starts the upload of an archive; offset is the offset sent to the card
+     * by GetPhotoStatus
+     */
+    void start(String macAddress, String arcName, long size, long offset)
+            throws IOException {
+        uploadEvent.begin();
+        this.macAddress = macAddress;
+        this.arcName = arcName;
         if (macAddress == null) {
             LOG.severe("No mac address in request");
             failed = true;
@@ -58,31 +102,158 @@ class Uploader {
             if (card == null) {
                 LOG.log(Level.SEVERE, "Card not found {0}", macAddress);
                 failed = true;
+            } else if (admission.enterCard(macAddress)) {
+                admittedCard = macAddress;
+                startTime = System.nanoTime();
+            } else {
+                throw new UploadRejectedException(
+                        "Too many uploads from card " + macAddress);
             }
             upload = handler.startUpload(card, arcName);
+            if (partials != null && card != null && arcName != null
+                    && size > 0) {
+                partial = partials.open(macAddress, arcName, size, offset);
+            }
+            if (partial == null && offset > 0) {
+                LOG.log(Level.SEVERE,
+                        "Cannot resume upload of {0} at offset {1}",
+                        new Object[] {arcName, offset});
+                failed = true;
+                lost = true;
+            }
         }
     }
 
-    void upload(InputStream tar) throws IOException {
-        ChecksumInputStream stream = new ChecksumInputStream(tar);
-        TarReader tr = new TarReader(stream);
-        for (TarEntry te = tr.nextEntry(); te != null; te = tr.nextEntry()) {
-            InputStream in = te.getInputStream();
+    /**
+     * Reads the archive; tar is the body of the multipart part, through
+     * which the received bytes are counted
+     */
+    void upload(PhaseInputStream tar) throws IOException {
+        if (lost) {
+            // the card starts over next time
+            try {
+                byte[] buf = new byte[8192];
+                while (tar.read(buf) >= 0) {
+                    // skip
+                }
+            } finally {
+                received = tar.getCount();
+            }
+            return;
+        }
+        ChecksumInputStream stream;
+        InputStream archive;
+        if (partial == null) {
+            stream = new ChecksumInputStream(tar);
+            archive = stream;
+        } else {
+            stream = partial.open(tar);
+            archive = partial.archive(stream);
+        }
+        try {
+            InputStream in = new PhaseInputStream(archive, clock,
+                    Phase.CHECKSUM);
+            if (pipeline == null) {
+                readEntries(in, clock);
+            } else {
+                pipe(in);
+            }
+            if (card != null) {
+                digestEvent = new DigestEvent();
+                digestEvent.begin();
+                Phase previous = clock.enter(Phase.CHECKSUM);
+                try {
+                    calculatedDigest = stream.checksum(card.getUploadKey());
+                } finally {
+                    clock.exit(previous);
+                }
+                digestEvent.end();
+            }
+            complete = true;
+        } finally {
+            archive.close();
+            received = tar.getCount();
+        }
+    }
+
+    /**
+     * Reads the tar entries from the archive, and passes them to the handler
+     */
+    private void readEntries(InputStream archive, PhaseClock clock)
+            throws IOException {
+        TarReader tr = new TarReader(archive);
+        for (TarEntry te = nextEntry(tr, clock); te != null;
+                te = nextEntry(tr, clock)) {
+            PhaseInputStream in = new PhaseInputStream(
+                    te.getInputStream(), clock, Phase.TAR);
             try {
                 if (!failed) {
                     if (upload == null) {
                         failed = true;
                     } else {
-                        upload.handleFile(te.getFileName(),
-                                te.getLastModified(), in);
+                        handleFile(te, in, clock);
                     }
                 }
             } finally {
                 in.close();
             }
         }
-        if (card != null) {
-            calculatedDigest = stream.checksum(card.getUploadKey());
+    }
+
+    /**
+     * Receives the archive on this thread, while a writer thread reads the
+     * entries from the pipe
+     */
+    private void pipe(InputStream archive) throws IOException {
+        final BufferPipe pipe = pipeline.newPipe();
+        final PhaseClock writerClock = new PhaseClock();
+        Future<Void> writer = pipeline.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                InputStream in = pipe.getInputStream();
+                try {
+                    readEntries(in, writerClock);
+                    // the end of the archive is only needed for the checksum
+                    in.skip(Long.MAX_VALUE);
+                } finally {
+                    in.close();
+                }
+                return null;
+            }
+        });
+        IOException error = null;
+        OutputStream out = pipe.getOutputStream();
+        try {
+            Transfers.transfer(archive, out, Long.MAX_VALUE);
+            out.close();
+        } catch (IOException ex) {
+            // if the writer has closed the pipe, its own error is reported
+            if (pipe.abort()) {
+                error = ex;
+            }
+        }
+        try {
+            writer.get();
+        } catch (InterruptedException ex) {
+            writer.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        } catch (ExecutionException ex) {
+            if (error == null) {
+                clock.add(writerClock);
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                } else if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+        clock.add(writerClock);
+        if (error != null) {
+            throw error;
         }
     }
 
@@ -101,17 +272,100 @@ class Uploader {
             failed = true;
         }
         success = !failed;
+        if (digestEvent != null) {
+            digestEvent.macAddress = macAddress;
+            digestEvent.fileName = arcName;
+            digestEvent.bytes = received;
+            digestEvent.success = success;
+            digestEvent.commit();
+        }
     }
 
     boolean close() {
+        if (admittedCard != null) {
+            admission.leaveCard(admittedCard);
+            metrics.recordCard(admittedCard, received,
+                    System.nanoTime() - startTime);
+            admittedCard = null;
+        }
+        if (partial != null) {
+            if (complete) {
+                partial.delete();
+            } else {
+                // interrupted: keep what was received for a later attempt
+                partial.close();
+            }
+        }
         if (upload != null) {
             if (success) {
-                upload.commit();
-                return true;
+                CommitEvent event = new CommitEvent();
+                event.begin();
+                Phase previous = clock.enter(Phase.COMMIT);
+                try {
+                    upload.commit();
+                } catch (IOException ex) {
+                    LOG.log(Level.SEVERE, "Could not commit upload", ex);
+                    success = false;
+                    // the card sends the archive again
+                    upload.abort();
+                } finally {
+                    clock.exit(previous);
+                }
+                event.macAddress = macAddress;
+                event.fileName = arcName;
+                event.bytes = received;
+                event.commit();
             } else {
-                upload.abort();
+                AbortEvent event = new AbortEvent();
+                event.begin();
+                Phase previous = clock.enter(Phase.ABORT);
+                try {
+                    upload.abort();
+                } finally {
+                    clock.exit(previous);
+                }
+                event.macAddress = macAddress;
+                event.fileName = arcName;
+                event.bytes = received;
+                event.commit();
             }
         }
-        return false;
+        boolean result = success && upload != null;
+        if (macAddress != null) {
+            uploadEvent.macAddress = macAddress;
+            uploadEvent.fileName = arcName;
+            uploadEvent.bytes = received;
+            uploadEvent.success = result;
+            uploadEvent.commit();
+        }
+        return result;
+    }
+
+    private static TarEntry nextEntry(TarReader tr, PhaseClock clock)
+            throws IOException {
+        Phase previous = clock.enter(Phase.TAR);
+        try {
+            return tr.nextEntry();
+        } finally {
+            clock.exit(previous);
+        }
+    }
+
+    private void handleFile(TarEntry te, PhaseInputStream in,
+            PhaseClock clock) throws IOException {
+        TarEntryEvent event = new TarEntryEvent();
+        event.begin();
+        Phase previous = clock.enter(Phase.HANDLER);
+        try {
+            upload.handleFile(te.getFileName(), te.getLastModified(),
+                    te.getLength(), in);
+        } finally {
+            clock.exit(previous);
+            event.macAddress = macAddress;
+            event.archiveName = arcName;
+            event.fileName = te.getFileName();
+            event.bytes = in.getCount();
+            event.commit();
+        }
     }
 }
@@ -24,6 +24,20 @@ import java.util.Date;
 public interface UploadHandler {
     public void handleFile(String fileName, Date timestamp, InputStream in)
             throws IOException;
+
+    /**
+     * Receives a file of the archive; length is its size in bytes, as given
+     * by the tar header. Handlers that have no use for the length only
+     * implement the other form.
+     */
+    public default void handleFile(String fileName, Date timestamp,
+            long length, InputStream in) throws IOException {
+        handleFile(fileName, timestamp, in);
+    }
     public void abort();
-    public void commit();
+    /**
+     * Makes the files of the upload permanent; the upload is reported as
+     * failed to the card if an exception is thrown
+     */
+    public void commit() throws IOException;
 }
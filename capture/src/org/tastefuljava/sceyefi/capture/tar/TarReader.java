@@ -19,14 +19,43 @@ package org.tastefuljava.sceyefi.capture.tar;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.tastefuljava.sceyefi.capture.util.TransferSource;
+import org.tastefuljava.sceyefi.capture.util.Transfers;
 
+/**
+ * Reads a tar archive. The header blocks are read fully, however the
+ * underlying stream splits them, and the bodies of the entries are read in
+ * bulk straight into the caller's buffers.
+ *
+ * Besides the original tar format, ustar name prefixes, GNU long names, PAX
+ * extended headers and base-256 numbers are supported, so that entries may
+ * be larger than 8 GB. Only regular files are returned; the checksum of each
+ * header is verified.
+ */
 public class TarReader {
     private static final int BLOCK_SIZE = 512;
+    private static final int MAX_EXTENDED_SIZE = 64*1024;
+    private static final String UTF8 = "UTF-8";
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_OLD_FILE = 0;
+    private static final byte TYPE_CONTIGUOUS = '7';
+    private static final byte TYPE_GNU_LONG_NAME = 'L';
+    private static final byte TYPE_PAX = 'x';
+    private static final byte TYPE_PAX_GLOBAL = 'g';
 
     private final InputStream in;
     private final byte[] buffer = new byte[BLOCK_SIZE];
+    private final Map<String,String> globalHeaders
+            = new HashMap<String,String>();
+    private EntryInputStream current;
 
     public TarReader(InputStream in) throws IOException {
         this.in = in;
@@ -37,61 +66,338 @@ public class TarReader {
     }
 
     private void readBuffer() throws IOException {
-        int n = in.read(buffer);
-        if (n != BLOCK_SIZE) {
-            throw new IOException("Invalid tar file");
+        int pos = 0;
+        while (pos < BLOCK_SIZE) {
+            int n = in.read(buffer, pos, BLOCK_SIZE - pos);
+            if (n < 0) {
+                throw new IOException("Invalid tar file");
+            }
+            pos += n;
         }
     }
 
+    /**
+     * Reads and discards count bytes. They are read rather than skipped, so
+     * that a filter of the underlying stream still sees all the bytes.
+     */
+    private void discard(long count) throws IOException {
+        while (count > 0) {
+            int n = in.read(buffer, 0, (int)Math.min(count, BLOCK_SIZE));
+            if (n < 0) {
+                throw new IOException("Truncated tar file");
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * Returns the next file entry, or null at the end of the archive. The
+     * rest of the current entry, if any, is skipped.
+     */
     public TarEntry nextEntry() throws IOException {
-        readBuffer();
-        if (buffer[0] == 0) {
-            return null;
+        String longName = null;
+        Map<String,String> paxHeaders = null;
+        while (true) {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            readBuffer();
+            if (buffer[0] == 0) {
+                return null;
+            }
+            verifyChecksum();
+            byte type = buffer[156];
+            if (type == TYPE_FILE || type == TYPE_OLD_FILE
+                    || type == TYPE_CONTIGUOUS) {
+                return newEntry(longName, paxHeaders);
+            }
+            current = new EntryInputStream(checkSize(getNumber(124, 12)));
+            if (type == TYPE_GNU_LONG_NAME) {
+                longName = toString(readExtended(current));
+            } else if (type == TYPE_PAX) {
+                paxHeaders = parsePax(readExtended(current));
+            } else if (type == TYPE_PAX_GLOBAL) {
+                globalHeaders.putAll(parsePax(readExtended(current)));
+            } else {
+                // directory, link, device...: skipped with its headers
+                longName = null;
+                paxHeaders = null;
+            }
         }
-        String fileName = getHeaderField(0, 100);
-        final long length = Long.parseLong(getHeaderField(124, 12), 8);
-        long lastModified = Long.parseLong(getHeaderField(136, 12), 8)*1000L;
-        return new TarEntry(fileName, new Date(lastModified), length,
-                new InputStream() {
-            private long pos;
-            private int index;
-
-            @Override
-            public int read() throws IOException {
-                if (pos >= length) {
-                    return -1;
+    }
+
+    private TarEntry newEntry(String longName, Map<String,String> paxHeaders)
+            throws IOException {
+        String fileName = longName != null ? longName : getName();
+        long length = getNumber(124, 12);
+        long lastModified = getNumber(136, 12)*1000L;
+        for (Map<String,String> headers: Arrays.asList(
+                globalHeaders, paxHeaders)) {
+            if (headers == null) {
+                continue;
+            }
+            try {
+                String value = headers.get("path");
+                if (value != null) {
+                    fileName = value;
                 }
-                if (index == 0) {
-                    readBuffer();
+                value = headers.get("size");
+                if (value != null) {
+                    length = Long.parseLong(value);
                 }
-                int result = buffer[index++] & 0xFF;
-                if (index == BLOCK_SIZE) {
-                    index = 0;
+                value = headers.get("mtime");
+                if (value != null) {
+                    lastModified = new BigDecimal(value)
+                            .movePointRight(3).longValue();
                 }
-                ++pos;
-                return result;
-            }
-
-            @Override
-            public void close() throws IOException {
-                if (pos < length) {
-                    pos -= pos % BLOCK_SIZE;
-                    do {
-                        readBuffer();
-                        pos += BLOCK_SIZE;
-                    } while (pos < length);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid PAX header: "
+                        + ex.getMessage());
+            }
+        }
+        current = new EntryInputStream(checkSize(length));
+        return new TarEntry(fileName, new Date(lastModified), length,
+                current);
+    }
+
+    /**
+     * Rejects the negative sizes that a base-256 field or a PAX record can
+     * carry
+     */
+    private static long checkSize(long size) throws IOException {
+        if (size < 0) {
+            throw new IOException("Invalid entry size: " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the name from the header, with the ustar prefix if any
+     */
+    private String getName() throws IOException {
+        String name = getString(0, 100);
+        if (buffer[257] == 'u' && buffer[258] == 's' && buffer[259] == 't'
+                && buffer[260] == 'a' && buffer[261] == 'r') {
+            String prefix = getString(345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Reads the body of a GNU long name or PAX entry. These are the only
+     * ones held in memory, and their size is limited.
+     */
+    private static byte[] readExtended(EntryInputStream entry)
+            throws IOException {
+        if (entry.length > MAX_EXTENDED_SIZE) {
+            throw new IOException("Tar extended header too long: "
+                    + entry.length);
+        }
+        byte[] data = new byte[(int)entry.length];
+        int pos = 0;
+        while (pos < data.length) {
+            pos += entry.read(data, pos, data.length - pos);
+        }
+        entry.close();
+        return data;
+    }
+
+    /**
+     * Parses PAX records: "length key=value\n", where length is the length
+     * of the whole record
+     */
+    private static Map<String,String> parsePax(byte[] data)
+            throws IOException {
+        Map<String,String> result = new HashMap<String,String>();
+        int pos = 0;
+        while (pos < data.length && data[pos] != 0) {
+            int len = 0;
+            int i = pos;
+            while (i < data.length && data[i] >= '0' && data[i] <= '9'
+                    && len < data.length) {
+                len = 10*len + data[i++] - '0';
+            }
+            int end = pos + len;
+            if (i >= data.length || data[i] != ' ' || end > data.length
+                    || end <= i || data[end-1] != '\n') {
+                throw new IOException("Invalid PAX header");
+            }
+            int eq = ++i;
+            while (eq < end && data[eq] != '=') {
+                ++eq;
+            }
+            if (eq == end) {
+                throw new IOException("Invalid PAX header");
+            }
+            result.put(new String(data, i, eq - i, UTF8),
+                    new String(data, eq + 1, end - eq - 2, UTF8));
+            pos = end;
+        }
+        return result;
+    }
+
+    /**
+     * Verifies the header checksum: the sum of the bytes of the header, with
+     * the checksum field itself counted as spaces. Some old implementations
+     * summed signed bytes; these are accepted too.
+     */
+    private void verifyChecksum() throws IOException {
+        long expected = getNumber(148, 8);
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            byte b = i >= 148 && i < 156 ? (byte)' ' : buffer[i];
+            unsigned += b & 0xFF;
+            signed += b;
+        }
+        if (expected != unsigned && expected != signed) {
+            throw new IOException("Invalid tar header checksum");
+        }
+    }
+
+    /**
+     * Returns a numeric field: either octal digits, or, when the high bit of
+     * the first byte is set, a base-256 big-endian two's complement number.
+     */
+    private long getNumber(int offs, int len) throws IOException {
+        int end = offs + len;
+        if ((buffer[offs] & 0x80) != 0) {
+            // bit 6 of the first byte is the sign
+            long value = (buffer[offs] & 0x40) != 0 ? -1 : 0;
+            value = (value << 6) | (buffer[offs] & 0x3F);
+            for (int i = offs + 1; i < end; ++i) {
+                if ((value >> 55) != 0 && (value >> 55) != -1) {
+                    throw new IOException("Tar number too large");
                 }
+                value = (value << 8) | (buffer[i] & 0xFF);
             }
-        });
+            return value;
+        }
+        int i = offs;
+        while (i < end && buffer[i] == ' ') {
+            ++i;
+        }
+        long value = 0;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '7') {
+            value = (value << 3) | (buffer[i++] - '0');
+        }
+        if (i < end && buffer[i] != ' ' && buffer[i] != 0) {
+            throw new IOException("Invalid tar header");
+        }
+        return value;
     }
 
-    private String getHeaderField(int offs, int len)
-            throws UnsupportedEncodingException {
+    private String getString(int offs, int len) throws IOException {
         int end = offs + len;
         int i = offs;
         while (i < end && buffer[i] != 0) {
             ++i;
         }
-        return new String(buffer, offs, i-offs, "ASCII");
+        return new String(buffer, offs, i-offs, UTF8);
+    }
+
+    private static String toString(byte[] data)
+            throws UnsupportedEncodingException {
+        int i = 0;
+        while (i < data.length && data[i] != 0) {
+            ++i;
+        }
+        return new String(data, 0, i, UTF8);
+    }
+
+    /**
+     * The body of an entry: the bytes up to length, followed by the padding
+     * of the last block, which is skipped by close()
+     */
+    private class EntryInputStream extends InputStream
+            implements TransferSource {
+        private final long length;
+        private long pos;
+        private boolean closed;
+
+        EntryInputStream(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (closed || pos >= length) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated tar file");
+            }
+            ++pos;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (closed || pos >= length) {
+                return -1;
+            }
+            int n = in.read(b, off, (int)Math.min(len, length - pos));
+            if (n < 0) {
+                throw new IOException("Truncated tar file");
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (closed || n <= 0) {
+                return 0;
+            }
+            long count = Math.min(n, length - pos);
+            discard(count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed) {
+                return 0;
+            }
+            return (int)Math.min(in.available(), length - pos);
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            return transferTo(out, Long.MAX_VALUE);
+        }
+
+        public long transferTo(OutputStream out, long count)
+                throws IOException {
+            if (closed) {
+                return 0;
+            }
+            long expected = Math.min(count, length - pos);
+            long n = Transfers.transfer(in, out, expected);
+            pos += n;
+            if (n < expected) {
+                throw new IOException("Truncated tar file");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                int padding = (int)((BLOCK_SIZE - length%BLOCK_SIZE)
+                        % BLOCK_SIZE);
+                discard(length - pos + padding);
+                pos = length;
+            }
+        }
     }
 }
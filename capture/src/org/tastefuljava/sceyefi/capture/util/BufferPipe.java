@@ -0,0 +1,325 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pipe between two threads, made of buffers taken from a pool. The
+ * producer fills the buffers through the output stream, and passes them to
+ * the consumer through a bounded ring; the consumer reads them through the
+ * input stream and gives them back to the pool. The ring has a single
+ * producer and a single consumer, so it needs no lock: a thread only parks
+ * when the ring is full (producer) or empty (consumer), and the capacity of
+ * the ring is what holds the producer back.
+ */
+public class BufferPipe {
+    private final BufferPool pool;
+    private final ByteBuffer[] ring;
+    private final int mask;
+    // index of the next buffer to take
+    private final AtomicLong head = new AtomicLong();
+    // index of the next buffer to put
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+    // set by the producer: no more buffers
+    private volatile boolean eof;
+    // set by the producer: the data is incomplete
+    private volatile boolean aborted;
+    // set by the consumer: no more buffers are taken
+    private volatile boolean closed;
+    private final Output output = new Output();
+    private final Input input = new Input();
+
+    /**
+     * Creates a pipe holding at most capacity buffers (rounded up to a power
+     * of two)
+     */
+    public BufferPipe(BufferPool pool, int capacity) {
+        this.pool = pool;
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        ring = new ByteBuffer[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the producer's stream; closing it signals the end of the data
+     */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Returns the consumer's stream. Closing it before the end of the data
+     * makes the producer fail.
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * Called by the producer when the data is incomplete: the consumer gets
+     * an IOException. Returns false if the consumer had already closed the
+     * pipe.
+     */
+    public boolean abort() {
+        aborted = true;
+        wakeUp(waitingConsumer);
+        return !closed;
+    }
+
+    private void put(ByteBuffer buf) throws IOException {
+        long t = tail.get();
+        while (t - head.get() == ring.length) {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            waitingProducer = Thread.currentThread();
+            if (t - head.get() == ring.length && !closed) {
+                LockSupport.park(this);
+            }
+            waitingProducer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (closed) {
+            throw new IOException("Pipe closed");
+        }
+        ring[(int)t & mask] = buf;
+        tail.set(t + 1);
+        wakeUp(waitingConsumer);
+    }
+
+    /**
+     * Returns the next buffer, or null at the end of the data
+     */
+    private ByteBuffer take() throws IOException {
+        long h = head.get();
+        while (h == tail.get()) {
+            if (aborted) {
+                throw new IOException("Upload interrupted");
+            } else if (eof) {
+                if (h == tail.get()) {
+                    return null;
+                }
+                // the last buffer was put before eof was set
+                break;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (h == tail.get() && !eof && !aborted) {
+                LockSupport.park(this);
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+        int index = (int)h & mask;
+        ByteBuffer buf = ring[index];
+        ring[index] = null;
+        head.set(h + 1);
+        wakeUp(waitingProducer);
+        return buf;
+    }
+
+    /**
+     * Gives the buffers left in the ring back to the pool
+     */
+    private void drain() {
+        long h = head.get();
+        long t = tail.get();
+        while (h < t) {
+            int index = (int)h & mask;
+            pool.release(ring[index]);
+            ring[index] = null;
+            head.set(++h);
+            t = tail.get();
+        }
+    }
+
+    private static void wakeUp(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private class Output extends OutputStream {
+        private ByteBuffer current;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current == null) {
+                current = pool.acquire();
+            }
+            current.put((byte)b);
+            if (!current.hasRemaining()) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null) {
+                    current = pool.acquire();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Passes the current buffer to the consumer
+         */
+        @Override
+        public void flush() throws IOException {
+            if (current != null && current.position() > 0) {
+                ByteBuffer buf = current;
+                current = null;
+                buf.flip();
+                try {
+                    put(buf);
+                } catch (IOException ex) {
+                    pool.release(buf);
+                    throw ex;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!eof) {
+                try {
+                    flush();
+                } finally {
+                    if (current != null) {
+                        pool.release(current);
+                        current = null;
+                    }
+                    eof = true;
+                    wakeUp(waitingConsumer);
+                }
+            }
+        }
+    }
+
+    private class Input extends InputStream implements TransferSource {
+        private ByteBuffer current;
+
+        /**
+         * Returns a buffer with remaining bytes, or null at the end of the
+         * data
+         */
+        private ByteBuffer next() throws IOException {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            while (current == null || !current.hasRemaining()) {
+                if (current != null) {
+                    pool.release(current);
+                    current = null;
+                }
+                current = take();
+                if (current == null) {
+                    return null;
+                }
+            }
+            return current;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer buf = next();
+            return buf == null ? -1 : buf.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buf = next();
+            if (buf == null) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            return transferTo(out, Long.MAX_VALUE);
+        }
+
+        public long transferTo(OutputStream out, long count)
+                throws IOException {
+            long total = 0;
+            byte[] copy = null;
+            while (total < count) {
+                ByteBuffer buf = next();
+                if (buf == null) {
+                    break;
+                }
+                int n = (int)Math.min(count - total, buf.remaining());
+                if (buf.hasArray()) {
+                    out.write(buf.array(), buf.arrayOffset() + buf.position(),
+                            n);
+                    buf.position(buf.position() + n);
+                } else {
+                    if (copy == null) {
+                        copy = new byte[buf.capacity()];
+                    }
+                    buf.get(copy, 0, n);
+                    out.write(copy, 0, n);
+                }
+                total += n;
+            }
+            return total;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (current != null) {
+                    pool.release(current);
+                    current = null;
+                }
+                drain();
+                wakeUp(waitingProducer);
+            }
+        }
+    }
+}
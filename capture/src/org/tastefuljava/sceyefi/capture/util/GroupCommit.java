@@ -0,0 +1,296 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Syncs the files of concurrent uploads to the disk. The first thread that
+ * asks for a sync becomes the leader of a batch: it waits for a short
+ * window, during which the other threads join the batch, and then commits
+ * the batch in three steps: the files of all the uploads are forced, the
+ * uploads are published (their files given their final names), and the
+ * folders are forced, each folder once for the whole batch. Every thread
+ * returns once its upload is durable, after a single window.
+ * <p>Java has no way of flushing a whole file system, so each file and
+ * folder still costs a flush of its own. They are forced in parallel on a
+ * small pool of threads rather than one after another: the file system can
+ * then merge them into fewer journal commits, and a batch takes about as
+ * long as its slowest flush.
+ */
+public class GroupCommit {
+    private static final long KEEP_ALIVE = 30;
+
+    private final long window;
+    private final ThreadPoolExecutor forcers;
+    private final ReentrantLock lock = new ReentrantLock();
+    // never signalled: the leader waits on it for the window
+    private final Condition timer = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    // the batch that is open for new uploads, if any
+    private Batch current;
+    private long batchCount;
+
+    /**
+     * Publishes an upload once its files are durable
+     */
+    public interface Publisher {
+        /**
+         * Gives the files their final names, and returns the folders to
+         * force
+         */
+        Collection<File> publish() throws IOException;
+    }
+
+    /**
+     * Creates a coordinator with the given window, in milliseconds, that
+     * forces up to the given number of files at a time
+     */
+    public GroupCommit(long window, int threads) {
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        final AtomicInteger count = new AtomicInteger();
+        forcers = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "eyefi-sync-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // no thread is kept while there is nothing to sync
+        forcers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the number of batches committed so far
+     */
+    public long getBatchCount() {
+        lock.lock();
+        try {
+            return batchCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the files (opened for writing), publishes the upload, forces
+     * the folders returned by the publisher, and returns when they are
+     * durable. The publisher may be called on another thread.
+     */
+    public void sync(Collection<File> files, Publisher publisher)
+            throws IOException {
+        Member member = new Member(files, publisher);
+        Batch batch;
+        boolean interrupted;
+        lock.lock();
+        try {
+            batch = current;
+            if (batch != null) {
+                batch.members.add(member);
+                while (!batch.done) {
+                    flushed.awaitUninterruptibly();
+                }
+                member.check();
+                return;
+            }
+            batch = current = new Batch();
+            batch.members.add(member);
+            interrupted = waitForWindow();
+            current = null;
+        } finally {
+            lock.unlock();
+        }
+        // the leader commits the batch without holding the lock; an
+        // interrupt is only restored once the batch is durable
+        try {
+            interrupted |= commit(batch);
+        } finally {
+            lock.lock();
+            try {
+                batch.done = true;
+                ++batchCount;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        member.check();
+    }
+
+    /**
+     * Commits a batch; the errors are reported to the members concerned.
+     * Returns true if the thread has been interrupted in the meantime.
+     */
+    private boolean commit(Batch batch) {
+        boolean interrupted = Thread.interrupted();
+        Map<File,List<Member>> files = new LinkedHashMap<File,List<Member>>();
+        for (Member member: batch.members) {
+            for (File file: member.files) {
+                add(files, file, member);
+            }
+        }
+        interrupted |= force(files, StandardOpenOption.WRITE);
+        Map<File,List<Member>> folders
+                = new LinkedHashMap<File,List<Member>>();
+        for (Member member: batch.members) {
+            if (member.error == null) {
+                try {
+                    for (File folder: member.publisher.publish()) {
+                        add(folders, folder, member);
+                    }
+                } catch (IOException ex) {
+                    member.error = ex;
+                } catch (RuntimeException ex) {
+                    member.error = new IOException(ex.getMessage(), ex);
+                }
+            }
+        }
+        interrupted |= force(folders, StandardOpenOption.READ);
+        return interrupted;
+    }
+
+    private static void add(Map<File,List<Member>> map, File file,
+            Member member) {
+        List<Member> members = map.get(file);
+        if (members == null) {
+            members = new ArrayList<Member>();
+            map.put(file, members);
+        }
+        members.add(member);
+    }
+
+    /**
+     * Forces the files in parallel; a failure is reported to the members
+     * that need the file. Returns true if the thread has been interrupted
+     * while waiting.
+     */
+    private boolean force(Map<File,List<Member>> files,
+            final StandardOpenOption option) {
+        Map<Future<Void>,List<Member>> futures
+                = new LinkedHashMap<Future<Void>,List<Member>>();
+        for (Map.Entry<File,List<Member>> entry: files.entrySet()) {
+            final File file = entry.getKey();
+            futures.put(forcers.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    force(file, option);
+                    return null;
+                }
+            }), entry.getValue());
+        }
+        boolean interrupted = false;
+        for (Map.Entry<Future<Void>,List<Member>> entry: futures.entrySet()) {
+            IOException error = null;
+            while (true) {
+                try {
+                    entry.getKey().get();
+                    break;
+                } catch (InterruptedException ex) {
+                    // the flush goes on: wait for it
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    error = cause instanceof IOException
+                            ? (IOException)cause
+                            : new IOException(cause.getMessage(), cause);
+                    break;
+                }
+            }
+            if (error != null) {
+                for (Member member: entry.getValue()) {
+                    if (member.error == null) {
+                        member.error = error;
+                    }
+                }
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * Waits for the other threads to join the batch; returns true if the
+     * wait has been interrupted, in which case the batch is committed right
+     * away
+     */
+    private boolean waitForWindow() {
+        long nanos = window;
+        try {
+            while (nanos > 0) {
+                nanos = timer.awaitNanos(nanos);
+            }
+            return false;
+        } catch (InterruptedException ex) {
+            return true;
+        }
+    }
+
+    private static void force(File file, StandardOpenOption option)
+            throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), option);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static class Member {
+        private final Collection<File> files;
+        private final Publisher publisher;
+        private IOException error;
+
+        Member(Collection<File> files, Publisher publisher) {
+            this.files = files;
+            this.publisher = publisher;
+        }
+
+        void check() throws IOException {
+            if (error != null) {
+                throw new IOException(error.getMessage(), error);
+            }
+        }
+    }
+
+    private static class Batch {
+        private final List<Member> members = new ArrayList<Member>();
+        private boolean done;
+    }
+}
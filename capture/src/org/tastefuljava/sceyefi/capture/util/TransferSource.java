@@ -0,0 +1,35 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream that can write its next bytes straight to an output stream, out
+ * of its own buffer, instead of having them copied to the caller's buffer
+ * first. Filters that implement it pass the bytes on as they go by (to
+ * compute a checksum for instance).
+ */
+public interface TransferSource {
+    /**
+     * Writes at most count bytes to out, and returns the number of bytes
+     * written; it is less than count only at the end of the stream.
+     */
+    public long transferTo(OutputStream out, long count) throws IOException;
+}
@@ -0,0 +1,52 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class Transfers {
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private Transfers() {
+    }
+
+    /**
+     * Copies at most count bytes from in to out, without an intermediate
+     * buffer if in is a TransferSource. Returns the number of bytes copied;
+     * it is less than count only at the end of the input stream.
+     */
+    public static long transfer(InputStream in, OutputStream out, long count)
+            throws IOException {
+        if (in instanceof TransferSource) {
+            return ((TransferSource)in).transferTo(out, count);
+        }
+        byte[] buf = new byte[(int)Math.min(BUFFER_SIZE, Math.max(count, 1))];
+        long total = 0;
+        while (total < count) {
+            int n = in.read(buf, 0, (int)Math.min(buf.length, count - total));
+            if (n < 0) {
+                break;
+            }
+            out.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+}
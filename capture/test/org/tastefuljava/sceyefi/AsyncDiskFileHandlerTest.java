@@ -0,0 +1,128 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.AsyncDiskFileHandler;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import static org.junit.Assert.*;
+
+public class AsyncDiskFileHandlerTest {
+    private File tempDir;
+    private EyeFiCard card;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("sceyefi").toFile();
+        EyeFiConf conf = EyeFiConf.load(TestSettings.create(tempDir, 1));
+        card = conf.getCards()[0];
+        data = new byte[1000000];
+        new Random(1234).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        System.out.println("commit");
+        for (boolean preallocate: new boolean[] {false, true}) {
+            UploadHandler upload = handler(preallocate).startUpload(card,
+                    "P1030001.JPG.tar");
+            upload.handleFile("P1030001.JPG", new Date(), data.length,
+                    new ByteArrayInputStream(data));
+            // shorter than announced
+            upload.handleFile("P1030002.JPG", new Date(), data.length + 10,
+                    new ByteArrayInputStream(data, 0, 12345));
+            upload.commit();
+            assertArrayEquals(data, Files.readAllBytes(
+                    new File(tempDir, "P1030001.JPG").toPath()));
+            assertArrayEquals(Arrays.copyOf(data, 12345), Files.readAllBytes(
+                    new File(tempDir, "P1030002.JPG").toPath()));
+            new File(tempDir, "P1030001.JPG").delete();
+            new File(tempDir, "P1030002.JPG").delete();
+        }
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        System.out.println("abort");
+        UploadHandler upload = handler(false).startUpload(card,
+                "P1030001.JPG.tar");
+        // writes may still be pending
+        upload.handleFile("P1030001.JPG", new Date(), data.length,
+                new ByteArrayInputStream(data));
+        InputStream in = new SequenceInputStream(
+                new ByteArrayInputStream(data), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+        try {
+            upload.handleFile("P1030002.JPG", new Date(), 2*data.length, in);
+            fail("Error not reported");
+        } catch (IOException ex) {
+            // expected
+        }
+        upload.abort();
+        assertEquals(Arrays.asList("Settings.xml"), list(tempDir));
+    }
+
+    private static AsyncDiskFileHandler handler(boolean preallocate)
+            throws IOException {
+        Properties props = new Properties();
+        props.setProperty("sceyefi.async.buffers", "3");
+        props.setProperty("sceyefi.async.bufferSize", "10000");
+        props.setProperty("sceyefi.preallocate",
+                Boolean.toString(preallocate));
+        return new AsyncDiskFileHandler(new ServerConf(props));
+    }
+
+    private static List<String> list(File dir) {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
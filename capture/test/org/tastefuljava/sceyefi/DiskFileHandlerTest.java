@@ -0,0 +1,307 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.DiskFileHandler;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import static org.junit.Assert.*;
+
+public class DiskFileHandlerTest {
+    private static final byte[] DATA = {1, 2, 3, 4, 5};
+
+    private File tempDir;
+    private File photoDir;
+    private EyeFiCard card;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("sceyefi").toFile();
+        photoDir = new File(tempDir, "photos");
+        photoDir.mkdir();
+        EyeFiConf conf = EyeFiConf.load(TestSettings.create(photoDir, 1));
+        card = conf.getCards()[0];
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(tempDir);
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        System.out.println("commit");
+        for (String sync: new String[] {ServerConf.SYNC_NONE,
+                ServerConf.SYNC_FILE, ServerConf.SYNC_SESSION,
+                ServerConf.SYNC_GROUP}) {
+            UploadHandler upload = handler(sync, false).startUpload(
+                    card, "P1030001.JPG.tar");
+            upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                    new ByteArrayInputStream(DATA));
+            // not under its name before the commit
+            assertFalse(new File(photoDir, "P1030001.JPG").exists());
+            upload.commit();
+            assertArrayEquals(DATA, Files.readAllBytes(
+                    new File(photoDir, "P1030001.JPG").toPath()));
+            assertEquals(Arrays.asList("P1030001.JPG", "Settings.xml"),
+                    list(photoDir));
+            new File(photoDir, "P1030001.JPG").delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCommitFailure() throws Exception {
+        System.out.println("commitFailure");
+        UploadHandler upload = handler(ServerConf.SYNC_FILE, false)
+                .startUpload(card, "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        // the temporary file can no longer be renamed
+        deleteTree(photoDir);
+        upload.commit();
+    }
+
+    @Test
+    public void testPartialCommitFailure() throws Exception {
+        System.out.println("partialCommitFailure");
+        DiskFileHandler handler = new DiskFileHandler();
+        UploadHandler upload = handler.startUpload(card, "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        upload.handleFile("P1030002.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        upload.handleFile("P1030003.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        // the second file can no longer be published
+        for (File file: photoDir.listFiles()) {
+            if (file.getName().startsWith(".P1030002.JPG-")) {
+                assertTrue(file.delete());
+            }
+        }
+        try {
+            upload.commit();
+            fail("Commit succeeded without its second file");
+        } catch (IOException ex) {
+            // expected
+        }
+        // nothing is left of the upload
+        assertEquals(Arrays.asList("Settings.xml"), list(photoDir));
+        // and the card sends it again under the same names
+        upload = handler.startUpload(card, "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        upload.commit();
+        assertEquals(Arrays.asList("P1030001.JPG", "Settings.xml"),
+                list(photoDir));
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        System.out.println("abort");
+        UploadHandler upload = new DiskFileHandler().startUpload(
+                card, "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        upload.abort();
+        assertEquals(Arrays.asList("Settings.xml"), list(photoDir));
+    }
+
+    @Test
+    public void testUniqueNames() throws Exception {
+        System.out.println("uniqueNames");
+        DiskFileHandler handler = new DiskFileHandler();
+        for (int i = 0; i < 3; ++i) {
+            UploadHandler upload = handler.startUpload(card,
+                    "P1030001.JPG.tar");
+            upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                    new ByteArrayInputStream(DATA));
+            upload.commit();
+        }
+        assertEquals(Arrays.asList("P1030001(1).JPG", "P1030001(2).JPG",
+                "P1030001.JPG", "Settings.xml"), list(photoDir));
+    }
+
+    @Test
+    public void testExistingNames() throws Exception {
+        System.out.println("existingNames");
+        Files.write(new File(photoDir, "P1030001.JPG").toPath(), DATA);
+        Files.write(new File(photoDir, "P1030001(5).JPG").toPath(), DATA);
+        UploadHandler upload = new DiskFileHandler().startUpload(card,
+                "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        upload.commit();
+        assertEquals(Arrays.asList("P1030001(5).JPG", "P1030001(6).JPG",
+                "P1030001.JPG", "Settings.xml"), list(photoDir));
+    }
+
+    @Test
+    public void testNamesTakenLater() throws Exception {
+        System.out.println("namesTakenLater");
+        DiskFileHandler handler = new DiskFileHandler();
+        UploadHandler upload = handler.startUpload(card, "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        upload.commit();
+        // created after the names of the folder have been read
+        byte[] other = {1, 2, 3};
+        Files.write(new File(photoDir, "P1030001(1).JPG").toPath(), other);
+        upload = handler.startUpload(card, "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                new ByteArrayInputStream(DATA));
+        upload.commit();
+        assertEquals(Arrays.asList("P1030001(1).JPG", "P1030001(2).JPG",
+                "P1030001.JPG", "Settings.xml"), list(photoDir));
+        assertArrayEquals(other, Files.readAllBytes(
+                new File(photoDir, "P1030001(1).JPG").toPath()));
+    }
+
+    @Test
+    public void testConcurrentNames() throws Exception {
+        System.out.println("concurrentNames");
+        final DiskFileHandler handler = new DiskFileHandler();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 8; ++i) {
+                results.add(exec.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        UploadHandler upload = handler.startUpload(card,
+                                "P1030001.JPG.tar");
+                        upload.handleFile("P1030001.JPG", new Date(), DATA.length,
+                                new ByteArrayInputStream(DATA));
+                        start.await();
+                        upload.commit();
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result: results) {
+                result.get();
+            }
+        } finally {
+            exec.shutdown();
+        }
+        List<String> names = list(photoDir);
+        assertEquals(9, names.size());
+        for (String name: names) {
+            if (!name.equals("Settings.xml")) {
+                assertArrayEquals(DATA, Files.readAllBytes(
+                        new File(photoDir, name).toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testPreallocate() throws Exception {
+        System.out.println("preallocate");
+        byte[] data = new byte[100000];
+        new Random(1234).nextBytes(data);
+        DiskFileHandler handler = handler(ServerConf.SYNC_FILE, true);
+        UploadHandler upload = handler.startUpload(card, "P1030001.JPG.tar");
+        upload.handleFile("P1030001.JPG", new Date(), data.length,
+                new ByteArrayInputStream(data));
+        // shorter than announced: truncated to what was written
+        upload.handleFile("P1030002.JPG", new Date(), data.length + 1000,
+                new ByteArrayInputStream(data));
+        upload.commit();
+        assertArrayEquals(data, Files.readAllBytes(
+                new File(photoDir, "P1030001.JPG").toPath()));
+        assertArrayEquals(data, Files.readAllBytes(
+                new File(photoDir, "P1030002.JPG").toPath()));
+    }
+
+    @Test
+    public void testPreallocateAbort() throws Exception {
+        System.out.println("preallocateAbort");
+        DiskFileHandler handler = handler(ServerConf.SYNC_FILE, true);
+        UploadHandler upload = handler.startUpload(card, "P1030001.JPG.tar");
+        InputStream in = new SequenceInputStream(
+                new ByteArrayInputStream(DATA), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+        try {
+            upload.handleFile("P1030001.JPG", new Date(), 100000, in);
+            fail("Error not reported");
+        } catch (IOException ex) {
+            // expected
+        }
+        upload.abort();
+        assertEquals(Arrays.asList("Settings.xml"), list(photoDir));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownSync() throws Exception {
+        System.out.println("unknownSync");
+        handler("sometimes", false);
+    }
+
+    private static DiskFileHandler handler(String sync, boolean preallocate)
+            throws IOException {
+        Properties props = new Properties();
+        props.setProperty("sceyefi.sync", sync);
+        props.setProperty("sceyefi.groupCommitWindow", "1");
+        props.setProperty("sceyefi.preallocate",
+                Boolean.toString(preallocate));
+        return new DiskFileHandler(new ServerConf(props));
+    }
+
+    private static List<String> list(File dir) {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
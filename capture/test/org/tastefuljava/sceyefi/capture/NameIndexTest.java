@@ -0,0 +1,103 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NameIndexTest {
+    private File dir;
+    private int linkAttempts;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("sceyefi").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testPublish() throws Exception {
+        System.out.println("publish");
+        NameIndex names = new NameIndex();
+        assertEquals(new File(dir, "P1030001.JPG"),
+                names.publish(temp("a"), dir, "P1030001.JPG"));
+        assertEquals(new File(dir, "P1030001(1).JPG"),
+                names.publish(temp("b"), dir, "P1030001.JPG"));
+        assertEquals(Arrays.asList("P1030001(1).JPG", "P1030001.JPG"),
+                list());
+    }
+
+    @Test
+    public void testNoLinks() throws Exception {
+        System.out.println("noLinks");
+        // like vfat or CIFS: link(2) fails with EPERM
+        NameIndex names = new NameIndex() {
+            @Override
+            void createLink(Path link, Path existing) throws IOException {
+                ++linkAttempts;
+                throw new FileSystemException(link.toString(),
+                        existing.toString(), "Operation not permitted");
+            }
+        };
+        assertEquals(new File(dir, "P1030001.JPG"),
+                names.publish(temp("a"), dir, "P1030001.JPG"));
+        assertEquals(new File(dir, "P1030001(1).JPG"),
+                names.publish(temp("b"), dir, "P1030001.JPG"));
+        assertEquals(Arrays.asList("P1030001(1).JPG", "P1030001.JPG"),
+                list());
+        assertEquals("a", read(new File(dir, "P1030001.JPG")));
+        assertEquals("b", read(new File(dir, "P1030001(1).JPG")));
+        // not tried again once refused
+        assertEquals(1, linkAttempts);
+    }
+
+    private File temp(String content) throws IOException {
+        File file = File.createTempFile(".P1030001-", ".tmp", dir);
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+
+    private List<String> list() {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
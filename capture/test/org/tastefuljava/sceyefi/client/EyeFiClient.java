@@ -117,7 +117,7 @@ public class EyeFiClient {
         snonce = Bytes.hex2bin(childText(resp, "snonce"));
     }
 
-    public void getPhotoStatus(String archiveName, long size)
+    public long getPhotoStatus(String archiveName, long size)
             throws IOException, JDOMException {
         byte[] credential = Bytes.md5(
                 Bytes.hex2bin(card.getMacAddress()),
@@ -134,10 +134,20 @@ public class EyeFiClient {
         addChildText(req, "flags", "4");
         Element resp = simpleAction(req);
         fileId = Long.parseLong(childText(resp, "fileid"));
+        return Long.parseLong(childText(resp, "offset"));
     }
 
     public void uploadArchive(InputStream input, String fileName, long size,
             Date timestamp) throws IOException, JDOMException {
+        uploadArchive(input, fileName, size, 0);
+    }
+
+    /**
+     * Uploads an archive from the given offset on, as when resuming an
+     * interrupted upload.
+     */
+    public void uploadArchive(InputStream input, String fileName, long size,
+            long offset) throws IOException, JDOMException {
         HttpURLConnection con = createConnection(true);
         try {
             String boundary = "aaaaaaaaaaaaazzzzzzzzzz";
@@ -146,39 +156,7 @@ public class EyeFiClient {
                     "multipart/form-data; boundary=" + boundary);
             OutputStream out = con.getOutputStream();
             try {
-                // Envelope
-                Element req = new Element("UploadPhoto", REQUEST_NAMESPACE);
-                addChildText(req, "fileid", Long.toString(fileId));
-                addChildText(req, "macaddress", card.getMacAddress());
-                addChildText(req, "filename", fileName);
-                addChildText(req, "filesize", Long.toString(size));
-                addChildText(req, "filesignature", "343afd9e4e84d3d4f5969cd97214f7f2");
-                addChildText(req, "encryption", "none");
-                addChildText(req, "flags", "4");
-                out.write(("\r\n--" + boundary + "\r\n").getBytes("ASCII"));
-                out.write("Content-Disposition: form-data; name=\"SOAPENVELOPE\"\r\n\r\n".getBytes("ASCII"));
-                XMLOutputter outp = new XMLOutputter();
-                Document doc = SoapEnvelope.wrap(req);
-                outp.output(doc, out);
-                logXML(Level.FINE, doc);
-                out.write(("\r\n--" + boundary + "\r\n").getBytes("ASCII"));
-                out.write(("Content-Disposition: form-data; name=\"FILENAME\""
-                        + "; filename=\"" + fileName + "\"\r\n"
-                        + "Content-Type: application/x-tar\r\n\r\n").getBytes("ASCII"));
-                ChecksumInputStream in = new ChecksumInputStream(input);
-                try {
-                    byte buf[] = new byte[4096];
-                    for (int n = in.read(buf); n > 0; n = in.read(buf)) {
-                        out.write(buf, 0, n);
-                    }
-                } finally {
-                    in.close();
-                }
-                byte[] digest = in.checksum(card.getUploadKey());
-                out.write(("\r\n--" + boundary + "\r\n").getBytes("ASCII"));
-                out.write("Content-Disposition: form-data; name=\"INTEGRITYDIGEST\"\r\n\r\n".getBytes("ASCII"));
-                out.write(Bytes.bin2hex(digest).getBytes("ASCII"));
-                out.write(("\r\n--" + boundary + "--\r\n").getBytes("ASCII"));
+                writeUpload(out, boundary, input, fileName, size, offset);
             } finally {
                 out.close();
             }
@@ -206,6 +184,48 @@ public class EyeFiClient {
         }
     }
 
+    public void writeUpload(OutputStream out, String boundary,
+            InputStream input, String fileName, long size, long offset)
+            throws IOException {
+        // Envelope
+        Element req = new Element("UploadPhoto", REQUEST_NAMESPACE);
+        addChildText(req, "fileid", Long.toString(fileId));
+        addChildText(req, "macaddress", card.getMacAddress());
+        addChildText(req, "filename", fileName);
+        addChildText(req, "filesize", Long.toString(size));
+        addChildText(req, "filesignature", "343afd9e4e84d3d4f5969cd97214f7f2");
+        addChildText(req, "encryption", "none");
+        addChildText(req, "flags", "4");
+        out.write(("\r\n--" + boundary + "\r\n").getBytes("ASCII"));
+        out.write("Content-Disposition: form-data; name=\"SOAPENVELOPE\"\r\n\r\n".getBytes("ASCII"));
+        XMLOutputter outp = new XMLOutputter();
+        Document doc = SoapEnvelope.wrap(req);
+        outp.output(doc, out);
+        logXML(Level.FINE, doc);
+        out.write(("\r\n--" + boundary + "\r\n").getBytes("ASCII"));
+        out.write(("Content-Disposition: form-data; name=\"FILENAME\""
+                + "; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: application/x-tar\r\n\r\n").getBytes("ASCII"));
+        // the digest covers the whole archive, even when resuming
+        ChecksumInputStream in = new ChecksumInputStream(input);
+        try {
+            long pos = 0;
+            byte buf[] = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                int skip = (int)Math.max(0, Math.min(n, offset - pos));
+                out.write(buf, skip, n - skip);
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        byte[] digest = in.checksum(card.getUploadKey());
+        out.write(("\r\n--" + boundary + "\r\n").getBytes("ASCII"));
+        out.write("Content-Disposition: form-data; name=\"INTEGRITYDIGEST\"\r\n\r\n".getBytes("ASCII"));
+        out.write(Bytes.bin2hex(digest).getBytes("ASCII"));
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes("ASCII"));
+    }
+
     public void markLastPhotoInRoll() throws JDOMException, IOException {
         Element req = new Element("MarkLastPhotoInRoll", REQUEST_NAMESPACE);
         addChildText(req, "macaddress", card.getMacAddress());
@@ -2,6 +2,10 @@ package org.tastefuljava.sceyefi.conf;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -49,4 +53,48 @@ public class MediaTest {
         System.out.println("customDateFormat");
         assertEquals("", media.getCustomDateFormat());
     }
+
+    @Test
+    public void testFolderForDate() {
+        System.out.println("folderForDate");
+        assertEquals(new File("/Users/maurice/Pictures/Eye-Fi/05-03-2012"),
+                media.folderForDate(date(2012, 3, 5)));
+    }
+
+    @Test
+    public void testCreateFolderForDate() throws IOException {
+        System.out.println("createFolderForDate");
+        File dir = Files.createTempDirectory("sceyefi").toFile();
+        try {
+            EyeFiConf conf = EyeFiConf.load(TestSettings.create(dir, 1,
+                    "%Y/%m %b/Day %d"));
+            Media custom = conf.getCards()[0].getMedia(Media.TYPE_PHOTO);
+            Date date = date(2012, 3, 5);
+            File expected = new File(dir, "2012/03 "
+                    + new SimpleDateFormat("MMM").format(date) + "/Day 05");
+            assertEquals(expected, custom.folderForDate(date));
+            assertEquals(expected, custom.createFolderForDate(date));
+            assertTrue(expected.isDirectory());
+            assertEquals(expected, custom.createFolderForDate(date));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static Date date(int year, int month, int day) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(year, month - 1, day, 12, 0);
+        return cal.getTime();
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
 }
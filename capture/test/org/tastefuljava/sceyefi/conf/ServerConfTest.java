@@ -0,0 +1,32 @@
+package org.tastefuljava.sceyefi.conf;
+
+import java.util.Properties;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import static org.junit.Assert.*;
+
+public class ServerConfTest {
+    @Test
+    public void testTimeouts() {
+        System.out.println("timeouts");
+        ServerConf conf = new ServerConf(new Properties());
+        assertEquals(1800, conf.getSessionTimeout());
+        assertEquals(86400, conf.getPartialTimeout());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroSessionTimeout() {
+        System.out.println("zeroSessionTimeout");
+        Properties props = new Properties();
+        props.setProperty("sceyefi.sessionTimeout", "0");
+        new ServerConf(props).getSessionTimeout();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativePartialTimeout() {
+        System.out.println("negativePartialTimeout");
+        Properties props = new Properties();
+        props.setProperty("sceyefi.partialTimeout", "-1");
+        new ServerConf(props).getPartialTimeout();
+    }
+}
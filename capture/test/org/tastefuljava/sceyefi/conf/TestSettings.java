@@ -0,0 +1,69 @@
+package org.tastefuljava.sceyefi.conf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.output.XMLOutputter;
+import org.tastefuljava.sceyefi.capture.util.Bytes;
+
+/**
+ * Generates an Eye-Fi settings file with several cards, to simulate several
+ * cards uploading at the same time.
+ */
+public class TestSettings {
+    private TestSettings() {
+        // nothing
+    }
+
+    public static File create(File dir, int cardCount) throws IOException {
+        return create(dir, cardCount, null);
+    }
+
+    /**
+     * Creates the settings with a date folder, if dateFormat is not null
+     */
+    public static File create(File dir, int cardCount, String dateFormat)
+            throws IOException {
+        Element cards = new Element("Cards");
+        for (int i = 0; i < cardCount; ++i) {
+            Element card = new Element("Card");
+            card.setAttribute("MacAddress",
+                    String.format("00-18-56-41-%02x-%02x", i/256, i%256));
+            addChildText(card, "UploadKey",
+                    Bytes.bin2hex(Bytes.randomBytes(16)));
+            addChildText(card, "DownsyncKey",
+                    Bytes.bin2hex(Bytes.randomBytes(16)));
+            addChildText(card, "TransferMode", "2");
+            addChildText(card, "TransferModeTimestamp", "1304088542");
+            Element media = new Element("Media");
+            media.setAttribute("Type", "1");
+            addChildText(media, "Folder", dir.getPath());
+            addChildText(media, "AddDate", dateFormat == null ? "0" : "1");
+            addChildText(media, "DateType", "1");
+            addChildText(media, "CustomDateFormat",
+                    dateFormat == null ? "" : dateFormat);
+            Element medias = new Element("MediaTypes");
+            medias.addContent(media);
+            card.addContent(medias);
+            cards.addContent(card);
+        }
+        Element config = new Element("Config");
+        config.setAttribute("version", "2.0");
+        config.addContent(cards);
+        File file = new File(dir, "Settings.xml");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            new XMLOutputter().output(new Document(config), out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void addChildText(Element elm, String name, String text) {
+        elm.addContent(new Element(name).setText(text));
+    }
+}
@@ -0,0 +1,60 @@
+package org.tastefuljava.sceyefi.metrics;
+
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.metrics.Histogram;
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void testEmpty() {
+        System.out.println("empty");
+        Histogram hist = new Histogram();
+        assertEquals(0, hist.getCount());
+        assertEquals(0, hist.getMax());
+        assertEquals(0, hist.getPercentile(0.5));
+    }
+
+    @Test
+    public void testPercentiles() {
+        System.out.println("percentiles");
+        Histogram hist = new Histogram();
+        for (long i = 1; i <= 100000; ++i) {
+            hist.record(i);
+        }
+        assertEquals(100000, hist.getCount());
+        assertEquals(100000L*100001/2, hist.getTotal());
+        assertEquals(100000, hist.getMax());
+        assertPrecision(50000, hist.getPercentile(0.5));
+        assertPrecision(90000, hist.getPercentile(0.9));
+        assertPrecision(99000, hist.getPercentile(0.99));
+        assertEquals(100000, hist.getPercentile(1.0));
+    }
+
+    @Test
+    public void testSmallValues() {
+        System.out.println("smallValues");
+        Histogram hist = new Histogram();
+        for (int i = 0; i < 8; ++i) {
+            hist.record(i);
+        }
+        // values below 8 have a bucket each
+        assertEquals(3, hist.getPercentile(0.5));
+        assertEquals(7, hist.getPercentile(1.0));
+    }
+
+    @Test
+    public void testLargeValues() {
+        System.out.println("largeValues");
+        Histogram hist = new Histogram();
+        hist.record(Long.MAX_VALUE);
+        hist.record(-1);
+        assertEquals(Long.MAX_VALUE, hist.getMax());
+        assertEquals(0, hist.getPercentile(0.5));
+        assertEquals(Long.MAX_VALUE, hist.getPercentile(1.0));
+    }
+
+    private static void assertPrecision(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " > " + expected, actual <= expected*1.125);
+    }
+}
@@ -0,0 +1,43 @@
+package org.tastefuljava.sceyefi.metrics;
+
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.metrics.UploadMetrics;
+import static org.junit.Assert.*;
+
+public class UploadMetricsTest {
+    @Test
+    public void testRejected() {
+        System.out.println("rejected");
+        UploadMetrics metrics = new UploadMetrics();
+        metrics.recordRejected();
+        assertEquals(1, metrics.getRejectedUploadCount());
+        assertEquals(0, metrics.getUploadCount());
+        assertEquals(0, metrics.getFailedUploadCount());
+    }
+
+    @Test
+    public void testMaxCards() throws Exception {
+        System.out.println("maxCards");
+        UploadMetrics metrics = new UploadMetrics(2);
+        metrics.recordCard("card1", 1000, 1000000000L);
+        Thread.sleep(1);
+        metrics.recordCard("card2", 1000, 1000000000L);
+        Thread.sleep(1);
+        metrics.recordCard("card1", 1000, 1000000000L);
+        Thread.sleep(1);
+        // card2 is the one idle the longest
+        metrics.recordCard("card3", 1000, 1000000000L);
+        assertArrayEquals(new String[] {
+            "card1: 1000 bytes/s", "card3: 1000 bytes/s"
+        }, metrics.getCardRates());
+        assertEquals(4000, metrics.getUploadedBytes());
+        String report = metrics.report();
+        assertFalse(report, report.contains("card2"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNoCards() {
+        System.out.println("noCards");
+        new UploadMetrics(0);
+    }
+}
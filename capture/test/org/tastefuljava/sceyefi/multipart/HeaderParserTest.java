@@ -1,6 +1,7 @@
 package org.tastefuljava.sceyefi.multipart;
 
 import org.tastefuljava.sceyefi.capture.multipart.HeaderParser;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.List;
 import java.io.IOException;
@@ -38,4 +39,26 @@ public class HeaderParserTest {
                 "form-data; name=\"pics\"; filename=\"file1.txt\"");
         assertEquals(result.get("content-type").get(0), "text/plain");
     }
+
+    @Test
+    public void testReuse() throws Exception {
+        System.out.println("reuse");
+        HeaderParser parser = new HeaderParser("ASCII");
+        byte[] bytes = TEST.getBytes("ASCII");
+        for (int i = 0; i < 2; ++i) {
+            Map<String,List<String>> result
+                    = parser.parse(bytes, 0, bytes.length);
+            assertEquals(2, result.size());
+            // well-known names are canonical
+            assertSame("content-type", result.keySet().toArray()[1]);
+            assertEquals("text/plain", result.get("content-type").get(0));
+        }
+        byte[] other = ("X-Custom: a\r\nx-custom: b\r\n"
+                + "Content-Type: text/html\r\n\r\n").getBytes("ASCII");
+        Map<String,List<String>> result = parser.parse(
+                new ByteArrayInputStream(other));
+        assertEquals(2, result.size());
+        assertEquals(Arrays.asList("a", "b"), result.get("x-custom"));
+        assertEquals("text/html", result.get("content-type").get(0));
+    }
 }
@@ -0,0 +1,136 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.tastefuljava.sceyefi.capture.multipart.Multipart;
+import org.tastefuljava.sceyefi.capture.multipart.MultipartDecoder;
+import org.tastefuljava.sceyefi.capture.multipart.MultipartListener;
+import org.tastefuljava.sceyefi.capture.multipart.Part;
+
+/**
+ * Measures the throughput of Multipart and MultipartDecoder on an upload
+ * made of a large random body. Run it once with the Vector API and once
+ * without, to compare the vector and the scalar scanners:
+ *
+ * java --add-modules jdk.incubator.vector ... MultipartBenchmark
+ * java -Dsceyefi.vector=false ... MultipartBenchmark
+ */
+public class MultipartBenchmark {
+    private static final int SIZE = 32*1024*1024;
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = createUpload(new Random(1234), SIZE);
+        System.out.println("vector: " + System.getProperty(
+                "sceyefi.vector", "true") + ", java: "
+                + System.getProperty("java.version") + ", arch: "
+                + System.getProperty("os.arch"));
+        measure("Multipart", data, new Runnable() {
+            public void run() {
+                try {
+                    pull(data);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        measure("MultipartDecoder", data, new Runnable() {
+            public void run() {
+                try {
+                    push(data);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+    }
+
+    private static void measure(String name, byte[] data, Runnable task) {
+        for (int i = 0; i < WARMUP; ++i) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-16s %8.1f MB/s%n", name,
+                data.length*1000.0/best);
+    }
+
+    private static long pull(byte[] data) throws IOException {
+        Multipart mp = new Multipart(new ByteArrayInputStream(data),
+                "UTF-8", "AaB03x".getBytes());
+        byte[] buf = new byte[64*1024];
+        long total = 0;
+        for (Part part = mp.nextPart(); part != null; part = mp.nextPart()) {
+            InputStream in = part.getBody();
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    private static long push(byte[] data) throws IOException {
+        final long[] total = new long[1];
+        MultipartDecoder decoder = new MultipartDecoder("AaB03x".getBytes(),
+                "UTF-8", new MultipartListener() {
+            public void partStart() {
+            }
+
+            public void header(String name, String value) {
+            }
+
+            public void bodyChunk(ByteBuffer chunk) {
+                total[0] += chunk.remaining();
+            }
+
+            public void partEnd() {
+            }
+        });
+        // as read from a socket
+        for (int i = 0; i < data.length; i += 64*1024) {
+            decoder.decode(ByteBuffer.wrap(data, i,
+                    Math.min(64*1024, data.length - i)));
+        }
+        decoder.finish();
+        return total[0];
+    }
+
+    private static byte[] createUpload(Random random, int size)
+            throws IOException {
+        byte[] body = new byte[size];
+        random.nextBytes(body);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--AaB03x\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "\r\n").getBytes("ASCII"));
+        out.write(body);
+        out.write("\r\n--AaB03x--\r\n".getBytes("ASCII"));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.tastefuljava.sceyefi.capture.multipart.Multipart;
+import org.tastefuljava.sceyefi.capture.multipart.MultipartDecoder;
+import org.tastefuljava.sceyefi.capture.multipart.MultipartListener;
+import org.tastefuljava.sceyefi.capture.multipart.Part;
+
+public class MultipartDecoderTest {
+    private static final byte[] BOUNDARY = "AaB03x".getBytes();
+    private static final String TEST = "preamble\r\n"
+            + "--AaB03x\r\n"
+            + "content-disposition: form-data; name=\"field1\"\r\n"
+            + "\r\n"
+            + "Joe Blow\r\n"
+            + "--AaB03x\r\n"
+            + "content-disposition: form-data; name=\"pics\"; filename=\"file1.txt\"\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + " ... contents of file1.txt ...\r\n"
+            + "--AaB03x--";
+
+    @Test
+    public void testSimple() throws IOException {
+        System.out.println("simple");
+        List<String> events = decode(TEST.getBytes("ASCII"), 0);
+        List<String> expected = new ArrayList<String>();
+        expected.add("start");
+        expected.add("content-disposition: form-data; name=\"field1\"");
+        expected.add("body: Joe Blow");
+        expected.add("end");
+        expected.add("start");
+        expected.add("content-disposition: form-data; name=\"pics\"; "
+                + "filename=\"file1.txt\"");
+        expected.add("content-type: text/plain");
+        expected.add("body:  ... contents of file1.txt ...");
+        expected.add("end");
+        assertEquals(expected, events);
+    }
+
+    @Test
+    public void testSplitSimple() throws IOException {
+        System.out.println("splitSimple");
+        byte[] data = TEST.getBytes("ASCII");
+        List<String> expected = decode(data, 0);
+        for (int i = 1; i < data.length; ++i) {
+            assertEquals("split at " + i, expected, decode(data, i));
+        }
+        assertEquals(expected, decodeBytes(data, false));
+    }
+
+    @Test
+    public void testSplitParts() throws IOException {
+        System.out.println("splitParts");
+        Random random = new Random(4321);
+        byte[][] bodies = {
+            randomBody(random, 700),
+            "\r\n--AaB03\r\n--AaB03x\r--AaB03xx\r\n--AaB03x-".getBytes("ASCII"),
+            new byte[0],
+            randomBody(random, 300)
+        };
+        byte[] data = multipart(bodies);
+        List<String> expected = pull(data);
+        assertEquals(4*4, expected.size());
+        assertEquals(expected, decode(data, 0));
+        for (int i = 1; i < data.length; ++i) {
+            assertEquals("split at " + i, expected, decode(data, i));
+        }
+        assertEquals(expected, decodeBytes(data, false));
+        assertEquals(expected, decodeBytes(data, true));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        System.out.println("truncated");
+        byte[] data = TEST.getBytes("ASCII");
+        MultipartDecoder decoder = new MultipartDecoder(
+                BOUNDARY, "UTF-8", new Recorder());
+        decoder.decode(ByteBuffer.wrap(data, 0, data.length-2));
+        assertFalse(decoder.isComplete());
+        try {
+            decoder.finish();
+            fail("Truncated stream not detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Decodes the data in two chunks split at the given position
+     */
+    private static List<String> decode(byte[] data, int split)
+            throws IOException {
+        Recorder recorder = new Recorder();
+        MultipartDecoder decoder = new MultipartDecoder(
+                BOUNDARY, "UTF-8", recorder);
+        decoder.decode(ByteBuffer.wrap(data, 0, split));
+        decoder.decode(ByteBuffer.wrap(data, split, data.length-split));
+        assertTrue(decoder.isComplete());
+        decoder.finish();
+        return recorder.events;
+    }
+
+    /**
+     * Decodes the data one byte at a time, reusing the same buffer
+     */
+    private static List<String> decodeBytes(byte[] data, boolean direct)
+            throws IOException {
+        Recorder recorder = new Recorder();
+        MultipartDecoder decoder = new MultipartDecoder(
+                BOUNDARY, "UTF-8", recorder);
+        ByteBuffer buf = direct
+                ? ByteBuffer.allocateDirect(1) : ByteBuffer.allocate(1);
+        for (byte b: data) {
+            buf.clear();
+            buf.put(b);
+            buf.flip();
+            decoder.decode(buf);
+            assertFalse(buf.hasRemaining());
+        }
+        decoder.finish();
+        return recorder.events;
+    }
+
+    /**
+     * Decodes the data with Multipart
+     */
+    private static List<String> pull(byte[] data) throws IOException {
+        List<String> events = new ArrayList<String>();
+        Multipart mp = new Multipart(new ByteArrayInputStream(data),
+                "UTF-8", BOUNDARY);
+        for (Part part = mp.nextPart(); part != null; part = mp.nextPart()) {
+            events.add("start");
+            for (String name: part.getHeaders().keySet()) {
+                for (String value: part.getValues(name)) {
+                    events.add(name + ": " + value);
+                }
+            }
+            InputStream in = part.getBody();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            in.close();
+            events.add("body: " + new String(baos.toByteArray(), "ISO-8859-1"));
+            events.add("end");
+        }
+        return events;
+    }
+
+    private static byte[] randomBody(Random random, int size) {
+        byte[] body = new byte[size];
+        random.nextBytes(body);
+        // sprinkle prefixes of the delimiter
+        byte[] prefix = "\r\n--AaB03x".getBytes();
+        for (int i = 0; i + prefix.length < size; i += 97) {
+            System.arraycopy(prefix, 0, body, i, 1 + i%(prefix.length - 1));
+        }
+        return body;
+    }
+
+    private static byte[] multipart(byte[][] bodies) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("pre\r\n--AaB03amble".getBytes("ASCII"));
+        for (byte[] body: bodies) {
+            out.write(("\r\n--AaB03x\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "\r\n").getBytes("ASCII"));
+            out.write(body);
+        }
+        out.write("\r\n--AaB03x--\r\nepilogue".getBytes("ASCII"));
+        return out.toByteArray();
+    }
+
+    private static class Recorder implements MultipartListener {
+        private final List<String> events = new ArrayList<String>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        @Override
+        public void partStart() {
+            events.add("start");
+            body.reset();
+        }
+
+        @Override
+        public void header(String name, String value) {
+            events.add(name + ": " + value);
+        }
+
+        @Override
+        public void bodyChunk(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                body.write(data.get());
+            }
+        }
+
+        @Override
+        public void partEnd() throws IOException {
+            events.add("body: " + new String(body.toByteArray(), "ISO-8859-1"));
+            events.add("end");
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Random;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -84,4 +85,147 @@ public class MultipartTest {
         }
         return new String(baos.toByteArray(), charset);
     }
+
+    @Test
+    public void testLargeParts() throws IOException {
+        System.out.println("largeParts");
+        Random random = new Random(1234);
+        byte[][] bodies = {
+            randomBody(random, 3*1024*1024),
+            "\r\n--AaB03\r\n--AaB03x\r--AaB03xx\r\n--AaB03x-".getBytes("ASCII"),
+            new byte[0],
+            randomBody(random, 100000)
+        };
+        byte[] data = multipart(bodies);
+        for (int chunk: new int[] {1, 7, 4096, 100000}) {
+            InputStream is = new ChunkedInputStream(data, chunk);
+            Multipart mp = new Multipart(is, "UTF-8", "AaB03x".getBytes());
+            for (byte[] body: bodies) {
+                Part part = mp.nextPart();
+                assertNotNull(part);
+                assertEquals("application/octet-stream",
+                        part.getFirstValue("content-type"));
+                assertArrayEquals(body, readBytes(part.getBody(), chunk));
+            }
+            assertNull(mp.nextPart());
+        }
+    }
+
+    @Test
+    public void testTransferTo() throws IOException {
+        System.out.println("transferTo");
+        Random random = new Random(5678);
+        byte[][] bodies = {randomBody(random, 1000000), new byte[] {1, 2}};
+        Multipart mp = new Multipart(new ChunkedInputStream(
+                multipart(bodies), 1500), "UTF-8", "AaB03x".getBytes());
+        for (byte[] body: bodies) {
+            Part part = mp.nextPart();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(body.length, part.getBody().transferTo(out));
+            assertArrayEquals(body, out.toByteArray());
+        }
+        assertNull(mp.nextPart());
+    }
+
+    @Test
+    public void testSkippedParts() throws IOException {
+        System.out.println("skippedParts");
+        Random random = new Random(91011);
+        byte[][] bodies = {randomBody(random, 200000), new byte[] {1, 2}};
+        Multipart mp = new Multipart(new ByteArrayInputStream(
+                multipart(bodies)), "UTF-8", "AaB03x".getBytes());
+        // the body of the first part is not read
+        assertNotNull(mp.nextPart());
+        Part part = mp.nextPart();
+        assertArrayEquals(bodies[1], readBytes(part.getBody(), 10));
+        assertNull(mp.nextPart());
+    }
+
+    @Test
+    public void testAlignments() throws IOException {
+        System.out.println("alignments");
+        // delimiters at every offset relative to the vector size, and
+        // near the end of the buffer
+        Random random = new Random(1213);
+        byte[][] bodies = new byte[200][];
+        for (int i = 0; i < bodies.length; ++i) {
+            bodies[i] = randomBody(random, i);
+        }
+        byte[] data = multipart(bodies);
+        for (int chunk: new int[] {3, 64, 65536}) {
+            Multipart mp = new Multipart(new ChunkedInputStream(data, chunk),
+                    "UTF-8", "AaB03x".getBytes());
+            for (byte[] body: bodies) {
+                Part part = mp.nextPart();
+                assertNotNull(part);
+                assertArrayEquals(body, readBytes(part.getBody(), 100));
+            }
+            assertNull(mp.nextPart());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        System.out.println("truncated");
+        byte[] data = multipart(new byte[][] {new byte[1000]});
+        byte[] truncated = new byte[data.length - 20];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        Multipart mp = new Multipart(new ByteArrayInputStream(truncated),
+                "UTF-8", "AaB03x".getBytes());
+        Part part = mp.nextPart();
+        part.getBody().close();
+        mp.nextPart();
+    }
+
+    private static byte[] randomBody(Random random, int size) {
+        byte[] body = new byte[size];
+        random.nextBytes(body);
+        // sprinkle prefixes of the delimiter
+        byte[] prefix = "\r\n--AaB03x".getBytes();
+        for (int i = 0; i + prefix.length < size; i += 997) {
+            System.arraycopy(prefix, 0, body, i, 1 + i%(prefix.length - 1));
+        }
+        return body;
+    }
+
+    private static byte[] multipart(byte[][] bodies) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("preamble".getBytes("ASCII"));
+        for (byte[] body: bodies) {
+            out.write(("\r\n--AaB03x\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "\r\n").getBytes("ASCII"));
+            out.write(body);
+        }
+        out.write("\r\n--AaB03x--\r\nepilogue".getBytes("ASCII"));
+        return out.toByteArray();
+    }
+
+    private static byte[] readBytes(InputStream in, int bufferSize)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[bufferSize];
+        for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+            baos.write(buf, 0, n);
+        }
+        in.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Returns the data in chunks of at most the given size, as a socket would
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
 }
@@ -16,4 +16,22 @@ public class ValueParserTest {
         assertEquals(result.get("boundary"), "abcxyz");
         assertEquals(result.get(""), "multipart/form");
     }
+
+    @Test
+    public void testParameters() {
+        System.out.println("parameters");
+        ValueParser parser = new ValueParser(
+                "Form-Data; NAME=\"pics\"; filename = \"a \\\"b\\\".txt\" ");
+        assertEquals("form-data", parser.getValue());
+        assertEquals("pics", parser.getParameter("name"));
+        assertEquals("a \"b\".txt", parser.getParameter("filename"));
+        assertNull(parser.getParameter("size"));
+        parser.reset("text/plain;charset=UTF-8");
+        assertEquals("text/plain", parser.getValue());
+        assertEquals("UTF-8", parser.getParameter("charset"));
+        assertNull(parser.getParameter("name"));
+        parser.reset("name=value");
+        assertNull(parser.getValue());
+        assertEquals("value", parser.getParameter("name"));
+    }
 }
@@ -0,0 +1,230 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.metrics.UploadMetrics;
+import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
+import org.tastefuljava.sceyefi.capture.spi.EyeFiHandler;
+import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+import static org.junit.Assert.*;
+
+public class AdmissionEyeFiServerTest {
+    private static final String BOUNDARY = "aaaaaaaaaaaaazzzzzzzzzz";
+    private static File tempDir;
+    private static EyeFiConf conf;
+    private static EyeFiServer server;
+    private static final Semaphore entered = new Semaphore(0);
+    private static final CountDownLatch released = new CountDownLatch(1);
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        tempDir = new File(System.getProperty("user.home"), "EyeFiTemp");
+        tempDir.mkdir();
+        conf = EyeFiConf.load(TestSettings.create(tempDir, 3));
+        Properties props = new Properties();
+        props.setProperty("sceyefi.workers", "4");
+        props.setProperty("sceyefi.maxUploads", "2");
+        props.setProperty("sceyefi.maxUploadsPerCard", "1");
+        props.setProperty("sceyefi.maxQueuedUploads", "0");
+        server = EyeFiServer.start(conf, new ServerConf(props),
+                new BlockingHandler(new FileEyeFiHandler(tempDir)));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        System.out.println("admission");
+        EyeFiCard[] cards = conf.getCards();
+        long failed = getCount("FailedUploadCount");
+        long rejected = getCount("RejectedUploadCount");
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            Future<Void> first = exec.submit(uploadTask(cards[0]));
+            assertTrue(entered.tryAcquire(10, TimeUnit.SECONDS));
+            // same card: over the per-card limit
+            assertRejected(cards[0]);
+            Future<Void> second = exec.submit(uploadTask(cards[1]));
+            assertTrue(entered.tryAcquire(10, TimeUnit.SECONDS));
+            // other card: over the global limit, and no room in the queue
+            assertRejected(cards[2]);
+            released.countDown();
+            first.get();
+            second.get();
+            // room again, once the server has released the slots: this
+            // happens just after the response has been sent
+            int retries = uploadWithRetry(cards[2]);
+            // rejected, not failed
+            assertEquals(rejected + 2 + retries,
+                    getCount("RejectedUploadCount"));
+            assertEquals(failed, getCount("FailedUploadCount"));
+        } finally {
+            released.countDown();
+            exec.shutdown();
+        }
+    }
+
+    /**
+     * The server answers 503 without reading the body, and closes the
+     * connection. The whole archive is sent, as a card would: the write may
+     * fail once the server has closed the connection, but the response is
+     * still there to be read.
+     */
+    private static void assertRejected(EyeFiCard card) throws Exception {
+        EyeFiClient client = new EyeFiClient("localhost", card);
+        byte[] tar = readStream(TarReaderTest.class.getResourceAsStream(
+                "P1030001.JPG.tar"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        client.writeUpload(body, BOUNDARY, new ByteArrayInputStream(tar),
+                "P1030001.JPG.tar", tar.length, 0);
+        Socket socket = new Socket("localhost", 59278);
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            try {
+                String headers = "POST /api/soap/eyefilm/v1/upload HTTP/1.1\r\n"
+                        + "Host: api.eye.fi\r\n"
+                        + "SOAPAction: urn:UploadPhoto\r\n"
+                        + "Content-Type: multipart/form-data; boundary="
+                        + BOUNDARY + "\r\n"
+                        + "Content-Length: " + body.size() + "\r\n\r\n";
+                out.write(headers.getBytes("ASCII"));
+                body.writeTo(out);
+                out.flush();
+            } catch (IOException ex) {
+                // closed by the server before the end of the body
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "ASCII"));
+            String status = in.readLine();
+            assertNotNull(status);
+            assertTrue(status, status.startsWith("HTTP/1.1 503"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] readStream(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long getCount(String attribute) throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(UploadMetrics.OBJECT_NAME);
+        return (Long)mbs.getAttribute(name, attribute);
+    }
+
+    /**
+     * Returns the number of times the upload has been rejected
+     */
+    private static int uploadWithRetry(EyeFiCard card) throws Exception {
+        for (int i = 0; ; ++i) {
+            try {
+                upload(card);
+                return i;
+            } catch (IOException ex) {
+                if (i >= 20 || !ex.getMessage().contains("503")) {
+                    throw ex;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static Callable<Void> uploadTask(final EyeFiCard card) {
+        return new Callable<Void>() {
+            public Void call() throws Exception {
+                upload(card);
+                return null;
+            }
+        };
+    }
+
+    private static void upload(EyeFiCard card) throws Exception {
+        EyeFiClient client = new EyeFiClient("localhost", card);
+        URL url = TarReaderTest.class.getResource("P1030001.JPG.tar");
+        client.uploadArchive(url, "P1030001.JPG.tar");
+    }
+
+    /**
+     * Holds the uploads until they are released by the test
+     */
+    private static class BlockingHandler implements EyeFiHandler {
+        private final EyeFiHandler handler;
+
+        BlockingHandler(EyeFiHandler handler) {
+            this.handler = handler;
+        }
+
+        public UploadHandler startUpload(EyeFiCard card, String archiveName) {
+            final UploadHandler upload = handler.startUpload(card,
+                    archiveName);
+            return new UploadHandler() {
+                private boolean first = true;
+
+                public void handleFile(String fileName, Date timestamp,
+                        InputStream in) throws IOException {
+                    if (first) {
+                        first = false;
+                        entered.release();
+                        try {
+                            released.await();
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex.getMessage());
+                        }
+                    }
+                    upload.handleFile(fileName, timestamp, in);
+                }
+
+                public void abort() {
+                    upload.abort();
+                }
+
+                public void commit() throws IOException {
+                    upload.commit();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.tastefuljava.sceyefi.capture.server.ChecksumInputStream;
+
+/**
+ * Measures the throughput of the integrity checksum, computed one byte at a
+ * time, and in bulk by ChecksumInputStream
+ */
+public class ChecksumBenchmark {
+    private static final int SIZE = 64*1024*1024;
+    private static final int RUNS = 8;
+    private static final byte[] KEY = new byte[16];
+
+    public static void main(String[] args) throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(1234).nextBytes(data);
+        for (int i = 0; i < 3; ++i) {
+            long start = System.nanoTime();
+            for (int j = 0; j < RUNS; ++j) {
+                ReferenceChecksum ref = new ReferenceChecksum();
+                for (int off = 0; off < SIZE; off += 65536) {
+                    ref.update(data, off, 65536);
+                }
+                ref.digest(KEY);
+            }
+            report("bytes", System.nanoTime() - start);
+            for (int chunk: new int[] {1460, 65536}) {
+                start = System.nanoTime();
+                for (int j = 0; j < RUNS; ++j) {
+                    bulk(data, chunk);
+                }
+                report("bulk/" + chunk, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static byte[] bulk(byte[] data, int chunk) throws IOException {
+        ChecksumInputStream in = new ChecksumInputStream(
+                new ByteArrayInputStream(data));
+        byte[] buf = new byte[chunk];
+        while (in.read(buf) >= 0) {
+            // only the checksum
+        }
+        return in.checksum(KEY);
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.printf("%-12s %8.0f MB/s%n", name,
+                (double)RUNS*SIZE/(1024*1024)/(nanos/1e9));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.server.ChecksumInputStream;
+import static org.junit.Assert.*;
+
+public class ChecksumInputStreamTest {
+    private static final byte[] KEY = {
+        0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC, (byte)0xDE, (byte)0xF0,
+        0x0F, 0x1E, 0x2D, 0x3C, 0x4B, 0x5A, 0x69, 0x78
+    };
+
+    @Test
+    public void testReadSizes() throws Exception {
+        System.out.println("readSizes");
+        Random random = new Random(1234);
+        for (int size: new int[] {0, 1, 2, 511, 512, 513, 1024, 100001}) {
+            byte[] data = randomData(random, size);
+            byte[] expected = reference(data);
+            for (int chunk: new int[] {1, 3, 8, 511, 512, 1000, 65536}) {
+                ChecksumInputStream in = new ChecksumInputStream(
+                        new ChunkedInputStream(data, chunk));
+                byte[] buf = new byte[chunk];
+                while (in.read(buf) >= 0) {
+                    // only the checksum
+                }
+                assertArrayEquals("size " + size + ", chunk " + chunk,
+                        expected, in.checksum(KEY));
+            }
+        }
+    }
+
+    @Test
+    public void testMixedReads() throws Exception {
+        System.out.println("mixedReads");
+        Random random = new Random(5678);
+        byte[] data = randomData(random, 300000);
+        ChecksumInputStream in = new ChecksumInputStream(
+                new ByteArrayInputStream(data));
+        byte[] buf = new byte[2000];
+        for (int i = 0; i < 1000; ++i) {
+            if (random.nextBoolean()) {
+                in.read();
+            } else {
+                in.read(buf, 0, 1 + random.nextInt(buf.length));
+            }
+        }
+        in.transferTo(new ByteArrayOutputStream(), 12345);
+        assertArrayEquals(reference(data), in.checksum(KEY));
+    }
+
+    private static byte[] reference(byte[] data) throws Exception {
+        ReferenceChecksum ref = new ReferenceChecksum();
+        ref.update(data, 0, data.length);
+        return ref.digest(KEY);
+    }
+
+    /**
+     * Random data, with runs of 0xFF that make the sums carry
+     */
+    private static byte[] randomData(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        for (int i = 0; i < size; i += 1500) {
+            Arrays.fill(data, i, Math.min(size, i + 700), (byte)0xFF);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the data in chunks of at most the given size, as a socket would
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
@@ -2,9 +2,14 @@ package org.tastefuljava.sceyefi.server;
 
 import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
 import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -12,8 +17,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.tastefuljava.sceyefi.client.EyeFiClient;
 import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.metrics.UploadMetrics;
 import org.tastefuljava.sceyefi.conf.EyeFiConfTest;
 import org.tastefuljava.sceyefi.tar.TarReaderTest;
+import static org.junit.Assert.*;
 
 public class EyeFiServerTest {
     private static final Logger LOG
@@ -55,4 +62,34 @@ public class EyeFiServerTest {
         URL url = TarReaderTest.class.getResource("P1030001.JPG.tar");
         client.uploadArchive(url, "P1030001.JPG.tar");
     }
+
+    @Test
+    public void testMetrics() throws Exception {
+        System.out.println("metrics");
+        URL url = TarReaderTest.class.getResource("P1030001.JPG.tar");
+        client.uploadArchive(url, "P1030001.JPG.tar");
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(UploadMetrics.OBJECT_NAME);
+        long count = (Long)mbs.getAttribute(name, "UploadCount");
+        assertTrue(count >= 1);
+        String report = readText(new URL("http://localhost:59278/metrics"));
+        assertTrue(report, report.contains("sceyefi_uploads_total " + count));
+        assertTrue(report, report.contains("sceyefi_phase_seconds_count"
+                + "{phase=\"checksum\"} " + count));
+        assertTrue(report, report.contains("sceyefi_card_bytes_total{card="));
+    }
+
+    private static String readText(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            return new String(baos.toByteArray(), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
 }
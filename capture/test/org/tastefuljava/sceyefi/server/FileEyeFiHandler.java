@@ -32,16 +32,13 @@ public class FileEyeFiHandler implements EyeFiHandler {
                     InputStream in) throws IOException {
                 File file = uniqueFile(folder, fileName);
                 OutputStream out = new FileOutputStream(file);
+                files.add(file);
                 try {
-                    byte buf[] = new byte[4096];
-                    for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
-                        out.write(buf, 0, n);
-                    }
+                    in.transferTo(out);
                 } finally {
                     out.close();
                 }
                 file.setLastModified(timestamp.getTime());
-                files.add(file);
             }
 
             public void abort() {
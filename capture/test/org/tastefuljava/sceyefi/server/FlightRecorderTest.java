@@ -0,0 +1,100 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+import static org.junit.Assert.*;
+
+public class FlightRecorderTest {
+    private static final String PREFIX = "org.tastefuljava.sceyefi.";
+    private static final String[] EVENTS = {
+        "StartSession", "GetPhotoStatus", "Upload", "TarEntry", "Digest",
+        "Commit", "Abort"
+    };
+
+    private static File tempDir;
+    private static EyeFiConf conf;
+    private static EyeFiServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        tempDir = new File(System.getProperty("user.home"), "EyeFiTemp");
+        tempDir.mkdir();
+        conf = EyeFiConf.load(TestSettings.create(tempDir, 1));
+        server = EyeFiServer.start(conf, new ServerConf(new Properties()),
+                new FileEyeFiHandler(tempDir));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        System.out.println("events");
+        EyeFiCard card = conf.getCards()[0];
+        File file = File.createTempFile("sceyefi", ".jfr");
+        try {
+            Recording recording = new Recording();
+            try {
+                for (String name: EVENTS) {
+                    recording.enable(PREFIX + name);
+                }
+                recording.start();
+                EyeFiClient client = new EyeFiClient("localhost", card);
+                client.uploadArchive(url(), "P1030001.JPG.tar");
+                recording.stop();
+                recording.dump(file.toPath());
+            } finally {
+                recording.close();
+            }
+            Map<String,RecordedEvent> events
+                    = new HashMap<String,RecordedEvent>();
+            List<RecordedEvent> recorded
+                    = RecordingFile.readAllEvents(file.toPath());
+            for (RecordedEvent event: recorded) {
+                String name = event.getEventType().getName();
+                if (name.startsWith(PREFIX)) {
+                    events.put(name.substring(PREFIX.length()), event);
+                    assertEquals(card.getMacAddress(),
+                            event.getString("macAddress"));
+                }
+            }
+            assertNotNull(events.get("StartSession"));
+            assertEquals("P1030001.JPG.tar",
+                    events.get("GetPhotoStatus").getString("fileName"));
+            RecordedEvent upload = events.get("Upload");
+            assertTrue(upload.getBoolean("success"));
+            long size = new File(url().getPath()).length();
+            assertEquals(size, upload.getLong("bytes"));
+            assertTrue(events.get("Digest").getBoolean("success"));
+            assertEquals("P1030001.JPG.log",
+                    events.get("TarEntry").getString("fileName"));
+            assertNotNull(events.get("Commit"));
+            assertNull(events.get("Abort"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static URL url() {
+        return TarReaderTest.class.getResource("P1030001.JPG.tar");
+    }
+}
@@ -0,0 +1,160 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
+import org.tastefuljava.sceyefi.capture.spi.EyeFiHandler;
+import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+import static org.junit.Assert.*;
+
+public class NioEyeFiServerTest {
+    private static final int CLIENTS = 8;
+    private static final String BOUNDARY = "aaaaaaaaaaaaazzzzzzzzzz";
+    private static final Semaphore started = new Semaphore(0);
+    private static File tempDir;
+    private static EyeFiConf conf;
+    private static EyeFiServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        tempDir = new File(System.getProperty("user.home"), "EyeFiTemp");
+        tempDir.mkdir();
+        conf = EyeFiConf.load(TestSettings.create(tempDir, CLIENTS));
+        Properties props = new Properties();
+        props.setProperty("sceyefi.transport", ServerConf.TRANSPORT_NIO);
+        props.setProperty("sceyefi.nio.eventLoops", "2");
+        props.setProperty("sceyefi.nio.bufferSize", "4096");
+        props.setProperty("sceyefi.nio.bodyBuffers", "2");
+        server = EyeFiServer.start(conf, new ServerConf(props),
+                new CountingHandler(new FileEyeFiHandler(tempDir)));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        System.out.println("upload");
+        upload(conf.getCards()[0]);
+    }
+
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        System.out.println("concurrentUploads");
+        ExecutorService exec = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final EyeFiCard card: conf.getCards()) {
+                results.add(exec.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        upload(card);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result: results) {
+                result.get();
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlowClient() throws Exception {
+        System.out.println("slowClient");
+        EyeFiCard[] cards = conf.getCards();
+        started.drainPermits();
+        Socket slow = SlowClient.startUpload(cards[0]);
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            // the upload starts before its body has been received
+            assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+            final EyeFiCard card = cards[1];
+            Future<Void> fast = exec.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    upload(card);
+                    return null;
+                }
+            });
+            fast.get(20, TimeUnit.SECONDS);
+        } finally {
+            exec.shutdownNow();
+            slow.close();
+        }
+    }
+
+    @Test
+    public void testRequestTooLarge() throws Exception {
+        System.out.println("requestTooLarge");
+        Socket socket = new Socket("localhost", 59278);
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            String headers = "POST /api/soap/eyefilm/v1/upload HTTP/1.1\r\n"
+                    + "Host: api.eye.fi\r\n"
+                    + "Content-Type: multipart/form-data; boundary="
+                    + BOUNDARY + "\r\n"
+                    + "Content-Length: " + (4L*1024*1024*1024) + "\r\n\r\n";
+            out.write(headers.getBytes("ASCII"));
+            out.flush();
+            byte[] status = new byte[12];
+            int n = 0;
+            while (n < status.length) {
+                int k = socket.getInputStream().read(status, n,
+                        status.length-n);
+                assertTrue(k > 0);
+                n += k;
+            }
+            assertEquals("HTTP/1.1 413", new String(status, "ASCII"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void upload(EyeFiCard card) throws Exception {
+        EyeFiClient client = new EyeFiClient("localhost", card);
+        URL url = TarReaderTest.class.getResource("P1030001.JPG.tar");
+        client.uploadArchive(url, "P1030001.JPG.tar");
+    }
+
+
+
+    /**
+     * Counts the uploads that have started
+     */
+    private static class CountingHandler implements EyeFiHandler {
+        private final EyeFiHandler handler;
+
+        CountingHandler(EyeFiHandler handler) {
+            this.handler = handler;
+        }
+
+        public UploadHandler startUpload(EyeFiCard card, String archiveName) {
+            started.release();
+            return handler.startUpload(card, archiveName);
+        }
+    }
+}
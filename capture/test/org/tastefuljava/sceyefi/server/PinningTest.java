@@ -0,0 +1,123 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.File;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
+import org.tastefuljava.sceyefi.capture.spi.EyeFiHandler;
+import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+import static org.junit.Assert.*;
+
+/**
+ * A virtual thread that blocks inside a synchronized block or method pins
+ * its carrier thread. With more slow cards than carriers, all blocked in the
+ * middle of their uploads, the server must still serve another card at once.
+ */
+public class PinningTest {
+    private static int slowClients;
+    private static CountDownLatch started;
+    private static File tempDir;
+    private static EyeFiConf conf;
+    private static EyeFiServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Assume.assumeTrue("Virtual threads not supported",
+                hasVirtualThreads());
+        // one more slow card than there are carriers; none is added to make
+        // up for a pinned one
+        int carriers = Integer.getInteger(
+                "jdk.virtualThreadScheduler.parallelism",
+                Runtime.getRuntime().availableProcessors());
+        slowClients = carriers + 1;
+        started = new CountDownLatch(slowClients);
+        tempDir = new File(System.getProperty("user.home"), "EyeFiTemp");
+        tempDir.mkdir();
+        conf = EyeFiConf.load(TestSettings.create(tempDir, slowClients + 1));
+        Properties props = new Properties();
+        props.setProperty("sceyefi.executor", ServerConf.EXECUTOR_VIRTUAL);
+        server = EyeFiServer.start(conf, new ServerConf(props),
+                new CountingHandler(new FileEyeFiHandler(tempDir)));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSlowClients() throws Exception {
+        System.out.println("slowClients");
+        EyeFiCard[] cards = conf.getCards();
+        List<Socket> slow = new ArrayList<Socket>();
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < slowClients; ++i) {
+                slow.add(SlowClient.startUpload(cards[i]));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            final EyeFiCard card = cards[slowClients];
+            Future<Void> fast = exec.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    EyeFiClient client = new EyeFiClient("localhost", card);
+                    URL url = TarReaderTest.class.getResource(
+                            "P1030001.JPG.tar");
+                    client.uploadArchive(url, "P1030001.JPG.tar");
+                    return null;
+                }
+            });
+            fast.get(20, TimeUnit.SECONDS);
+        } finally {
+            exec.shutdownNow();
+            for (Socket socket: slow) {
+                socket.close();
+            }
+        }
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("isVirtual");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the uploads that have started
+     */
+    private static class CountingHandler implements EyeFiHandler {
+        private final EyeFiHandler handler;
+
+        CountingHandler(EyeFiHandler handler) {
+            this.handler = handler;
+        }
+
+        public UploadHandler startUpload(EyeFiCard card, String archiveName) {
+            started.countDown();
+            return handler.startUpload(card, archiveName);
+        }
+    }
+}
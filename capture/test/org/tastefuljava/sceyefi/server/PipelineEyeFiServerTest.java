@@ -0,0 +1,81 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+
+public class PipelineEyeFiServerTest {
+    private static final int CLIENTS = 8;
+    private static File tempDir;
+    private static EyeFiConf conf;
+    private static EyeFiServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        tempDir = new File(System.getProperty("user.home"), "EyeFiTemp");
+        tempDir.mkdir();
+        conf = EyeFiConf.load(TestSettings.create(tempDir, CLIENTS));
+        Properties props = new Properties();
+        props.setProperty("sceyefi.workers", "2");
+        // a small pipe, so that the receivers wait for the writers
+        props.setProperty("sceyefi.pipeline.buffers", "2");
+        props.setProperty("sceyefi.pipeline.bufferSize", "4096");
+        server = EyeFiServer.start(conf, new ServerConf(props),
+                new FileEyeFiHandler(tempDir));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        System.out.println("upload");
+        upload(conf.getCards()[0]);
+    }
+
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        System.out.println("concurrentUploads");
+        ExecutorService exec = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final EyeFiCard card: conf.getCards()) {
+                results.add(exec.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        upload(card);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result: results) {
+                result.get();
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private static void upload(EyeFiCard card) throws Exception {
+        EyeFiClient client = new EyeFiClient("localhost", card);
+        URL url = TarReaderTest.class.getResource("P1030001.JPG.tar");
+        client.uploadArchive(url, "P1030001.JPG.tar");
+    }
+}
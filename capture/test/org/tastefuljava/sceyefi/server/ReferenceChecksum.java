@@ -0,0 +1,71 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The integrity checksum computed one byte at a time, as ChecksumInputStream
+ * used to do: the reference for the tests and the benchmark
+ */
+class ReferenceChecksum {
+    private final MessageDigest digest;
+    private int count;
+    private int lobyte;
+    private int sum;
+
+    ReferenceChecksum() throws NoSuchAlgorithmException {
+        digest = MessageDigest.getInstance("MD5");
+    }
+
+    void update(byte[] b, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; ++i) {
+            processByte(b[i] & 0xFF);
+        }
+    }
+
+    byte[] digest(byte[] key) {
+        while (count != 0) {
+            processByte(0);
+        }
+        return digest.digest(key);
+    }
+
+    private void processByte(int b) {
+        ++count;
+        if (count%2 != 0) {
+            lobyte = b;
+        } else {
+            sum += lobyte | (b << 8);
+            if (count == 512) {
+                int hiword = sum >>> 16;
+                while (hiword != 0) {
+                    sum = (sum & 0xFFFF) + hiword;
+                    hiword = sum >>> 16;
+                }
+                sum ^= 0xFFFF;
+                digest.update((byte)(sum & 0xFF));
+                digest.update((byte)(sum >>> 8));
+                sum = 0;
+                count = 0;
+            }
+        }
+    }
+}
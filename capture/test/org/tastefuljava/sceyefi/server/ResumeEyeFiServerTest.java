@@ -0,0 +1,236 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
+import org.tastefuljava.sceyefi.capture.tar.TarEntry;
+import org.tastefuljava.sceyefi.capture.tar.TarReader;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+import static org.junit.Assert.*;
+
+public class ResumeEyeFiServerTest {
+    private static final String ARCHIVE_NAME = "P1030001.JPG.tar";
+    private static final String BOUNDARY = "aaaaaaaaaaaaazzzzzzzzzz";
+    private static File tempDir;
+    private static EyeFiConf conf;
+    private static EyeFiServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        tempDir = new File(System.getProperty("user.home"), "EyeFiResume");
+        deleteTree(tempDir);
+        tempDir.mkdir();
+        conf = EyeFiConf.load(TestSettings.create(tempDir, 1));
+        Properties props = new Properties();
+        props.setProperty("sceyefi.resume", "true");
+        props.setProperty("sceyefi.partialDir",
+                new File(tempDir, "partial").getPath());
+        server = EyeFiServer.start(conf, new ServerConf(props),
+                new FileEyeFiHandler(tempDir));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.close();
+        deleteTree(tempDir);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        System.out.println("resume");
+        byte[] tar = readResource(ARCHIVE_NAME);
+        EyeFiClient client = new EyeFiClient("localhost", conf.getCards()[0]);
+        client.startSession();
+        assertEquals(0, client.getPhotoStatus(ARCHIVE_NAME, tar.length));
+
+        // the connection drops in the middle of the archive
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        client.writeUpload(body, BOUNDARY, new ByteArrayInputStream(tar),
+                ARCHIVE_NAME, tar.length, 0);
+        sendTruncated(body.toByteArray(), body.size()/2);
+        long offset = awaitOffset(client, ARCHIVE_NAME, tar.length);
+        assertTrue(offset > 0);
+        assertTrue(offset < tar.length);
+        assertEquals(0, offset%512);
+
+        // the card sends the rest
+        client.uploadArchive(new ByteArrayInputStream(tar), ARCHIVE_NAME,
+                tar.length, offset);
+        assertEquals(0, client.getPhotoStatus(ARCHIVE_NAME, tar.length));
+        TarReader reader = new TarReader(new ByteArrayInputStream(tar));
+        TarEntry entry = reader.nextEntry();
+        File file = new File(tempDir, entry.getFileName());
+        assertArrayEquals(readStream(entry.getInputStream()),
+                readStream(new FileInputStream(file)));
+    }
+
+    @Test
+    public void testLargeArchive() throws Exception {
+        System.out.println("largeArchive");
+        // the bytes received before the resume span several segments of
+        // the parallel checksum, and a partial block follows the archive
+        byte[] tar = readResource(ARCHIVE_NAME);
+        ByteArrayOutputStream large = new ByteArrayOutputStream();
+        for (int i = 0; i < 4; ++i) {
+            large.write(tar);
+        }
+        large.write(new byte[100]);
+        byte[] data = large.toByteArray();
+        String name = "P1030002.JPG.tar";
+        EyeFiClient client = new EyeFiClient("localhost", conf.getCards()[0]);
+        client.startSession();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        client.writeUpload(body, BOUNDARY, new ByteArrayInputStream(data),
+                name, data.length, 0);
+        sendTruncated(body.toByteArray(), body.size()*3/4);
+        long offset = awaitOffset(client, name, data.length);
+        assertTrue(offset > 4*1024*1024);
+        client.uploadArchive(new ByteArrayInputStream(data), name,
+                data.length, offset);
+        assertEquals(0, client.getPhotoStatus(name, data.length));
+    }
+
+    @Test
+    public void testPartialChanged() throws Exception {
+        System.out.println("partialChanged");
+        byte[] tar = readResource(ARCHIVE_NAME);
+        String name = "P1030003.JPG.tar";
+        EyeFiClient client = new EyeFiClient("localhost", conf.getCards()[0]);
+        client.startSession();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        client.writeUpload(body, BOUNDARY, new ByteArrayInputStream(tar),
+                name, tar.length, 0);
+        sendTruncated(body.toByteArray(), body.size()/2);
+        long offset = awaitOffset(client, name, tar.length);
+        assertTrue(offset > 0);
+        // a stale connection appends to the partial upload after the card
+        // has been given its offset
+        File part = partFile();
+        Files.write(part.toPath(), new byte[1024],
+                StandardOpenOption.APPEND);
+        client.uploadArchive(new ByteArrayInputStream(tar), name,
+                tar.length, offset);
+        assertEquals(0, client.getPhotoStatus(name, tar.length));
+    }
+
+    @Test
+    public void testPartialLost() throws Exception {
+        System.out.println("partialLost");
+        byte[] tar = readResource(ARCHIVE_NAME);
+        String name = "P1030004.JPG.tar";
+        EyeFiClient client = new EyeFiClient("localhost", conf.getCards()[0]);
+        client.startSession();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        client.writeUpload(body, BOUNDARY, new ByteArrayInputStream(tar),
+                name, tar.length, 0);
+        sendTruncated(body.toByteArray(), body.size()/2);
+        long offset = awaitOffset(client, name, tar.length);
+        assertTrue(offset > 0);
+        // the bytes before the offset disappear in the meantime
+        File part = partFile();
+        RandomAccessFile raf = new RandomAccessFile(part, "rw");
+        try {
+            raf.setLength(offset/2);
+        } finally {
+            raf.close();
+        }
+        try {
+            client.uploadArchive(new ByteArrayInputStream(tar), name,
+                    tar.length, offset);
+            fail("Upload resumed without its beginning");
+        } catch (IOException ex) {
+            // expected
+        }
+        // the card starts over
+        assertEquals(0, client.getPhotoStatus(name, tar.length));
+        client.uploadArchive(new ByteArrayInputStream(tar), name,
+                tar.length, 0);
+    }
+
+    /**
+     * Returns the data file of the only partial upload
+     */
+    private static File partFile() {
+        File[] files = new File(tempDir, "partial").listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    /**
+     * Waits until the server has kept the bytes of an interrupted upload,
+     * and returns the offset at which it can be resumed
+     */
+    private static long awaitOffset(EyeFiClient client, String name,
+            long size) throws Exception {
+        long offset = 0;
+        for (int i = 0; i < 100 && offset == 0; ++i) {
+            Thread.sleep(100);
+            offset = client.getPhotoStatus(name, size);
+        }
+        return offset;
+    }
+
+    private static void sendTruncated(byte[] body, int length)
+            throws IOException {
+        Socket socket = new Socket("localhost", 59278);
+        try {
+            OutputStream out = socket.getOutputStream();
+            String headers = "POST /api/soap/eyefilm/v1/upload HTTP/1.1\r\n"
+                    + "Host: api.eye.fi\r\n"
+                    + "SOAPAction: urn:UploadPhoto\r\n"
+                    + "Content-Type: multipart/form-data; boundary="
+                    + BOUNDARY + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n\r\n";
+            out.write(headers.getBytes("ASCII"));
+            out.write(body, 0, length);
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        return readStream(TarReaderTest.class.getResourceAsStream(name));
+    }
+
+    private static byte[] readStream(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
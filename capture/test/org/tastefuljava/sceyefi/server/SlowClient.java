@@ -0,0 +1,58 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+
+/**
+ * A card that stops in the middle of its upload
+ */
+public class SlowClient {
+    private static final String BOUNDARY = "aaaaaaaaaaaaazzzzzzzzzz";
+
+    private SlowClient() {
+    }
+
+    /**
+     * Sends the first half of an upload, and leaves the connection open
+     */
+    public static Socket startUpload(EyeFiCard card) throws IOException {
+        byte[] tar = readStream(TarReaderTest.class.getResourceAsStream(
+                "P1030001.JPG.tar"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        EyeFiClient client = new EyeFiClient("localhost", card);
+        client.writeUpload(body, BOUNDARY, new ByteArrayInputStream(tar),
+                "P1030001.JPG.tar", tar.length, 0);
+        Socket socket = new Socket("localhost", 59278);
+        OutputStream out = socket.getOutputStream();
+        String headers = "POST /api/soap/eyefilm/v1/upload HTTP/1.1\r\n"
+                + "Host: api.eye.fi\r\n"
+                + "SOAPAction: urn:UploadPhoto\r\n"
+                + "Content-Type: multipart/form-data; boundary="
+                + BOUNDARY + "\r\n"
+                + "Content-Length: " + body.size() + "\r\n\r\n";
+        out.write(headers.getBytes("ASCII"));
+        out.write(body.toByteArray(), 0, body.size()/2);
+        out.flush();
+        return socket;
+    }
+
+    public static byte[] readStream(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
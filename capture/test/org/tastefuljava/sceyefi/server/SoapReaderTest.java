@@ -0,0 +1,76 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.server.SoapReader;
+import org.tastefuljava.sceyefi.capture.server.SoapRequest;
+import static org.junit.Assert.*;
+
+public class SoapReaderTest {
+    private static final String START_SESSION =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:ns1=\"EyeFi/SOAP/EyeFilm\">\n"
+            + "  <SOAP-ENV:Body>\n"
+            + "    <ns1:StartSession>\n"
+            + "      <macaddress>001856417729</macaddress>\n"
+            + "      <cnonce>8744904b7ea202439631c67186690a1e</cnonce>\n"
+            + "      <transfermode>2</transfermode>\n"
+            + "      <transfermodetimestamp>1304505230</transfermodetimestamp>\n"
+            + "    </ns1:StartSession>\n"
+            + "  </SOAP-ENV:Body>\n"
+            + "</SOAP-ENV:Envelope>\n";
+    private static final String UPLOAD_PHOTO =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:ns1=\"EyeFi/SOAP/EyeFilm\">"
+            + "<SOAP-ENV:Body><ns1:UploadPhoto>"
+            + "<fileid>1</fileid>"
+            + "<macaddress>001856417729</macaddress>"
+            + "<filename>P1030007.JPG.tar</filename>"
+            + "<filesize>1269760</filesize>"
+            + "<filesignature>c8340300c434030000000000dced0300</filesignature>"
+            + "<encryption>none</encryption>"
+            + "<flags>4</flags>"
+            + "</ns1:UploadPhoto></SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    @Test
+    public void testStartSession() throws IOException {
+        System.out.println("startSession");
+        SoapRequest req = read(START_SESSION);
+        assertEquals("StartSession", req.getAction());
+        assertEquals("001856417729", req.getMacAddress());
+        assertEquals("8744904b7ea202439631c67186690a1e", req.getCnonce());
+        assertEquals("2", req.getTransferMode());
+        assertEquals("1304505230", req.getTransferModeTimestamp());
+        assertNull(req.getCredential());
+    }
+
+    @Test
+    public void testUploadPhoto() throws IOException {
+        System.out.println("uploadPhoto");
+        SoapRequest req = read(UPLOAD_PHOTO);
+        assertEquals("UploadPhoto", req.getAction());
+        assertEquals("1", req.getFileId());
+        assertEquals("001856417729", req.getMacAddress());
+        assertEquals("P1030007.JPG.tar", req.getFileName());
+        assertEquals("1269760", req.getFileSize());
+        assertEquals("none", req.getEncryption());
+        assertEquals("4", req.getFlags());
+    }
+
+    @Test(expected=IOException.class)
+    public void testNotSoap() throws IOException {
+        System.out.println("notSoap");
+        read("<html><body/></html>");
+    }
+
+    private static SoapRequest read(String xml) throws IOException {
+        InputStream in = new ByteArrayInputStream(xml.getBytes("UTF-8"));
+        try {
+            return SoapReader.read(in);
+        } finally {
+            in.close();
+        }
+    }
+}
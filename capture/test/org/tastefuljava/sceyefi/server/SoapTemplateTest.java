@@ -0,0 +1,127 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.server.SoapEnvelope;
+import org.tastefuljava.sceyefi.capture.server.SoapTemplate;
+import static org.junit.Assert.*;
+
+public class SoapTemplateTest {
+    private static final File SESSION_DUMP = new File("doc/session-dump.txt");
+    private static final Namespace EYEFI_NAMESPACE = Namespace.getNamespace(
+                    "ns1", "http://localhost/api/soap/eyefilm");
+    private static final Map<String,SoapTemplate> TEMPLATES
+            = new HashMap<String,SoapTemplate>();
+
+    static {
+        TEMPLATES.put("StartSessionResponse", SoapTemplate.START_SESSION);
+        TEMPLATES.put("GetPhotoStatusResponse", SoapTemplate.GET_PHOTO_STATUS);
+        TEMPLATES.put("UploadPhotoResponse", SoapTemplate.UPLOAD_PHOTO);
+        TEMPLATES.put("MarkLastPhotoInRollResponse",
+                SoapTemplate.MARK_LAST_PHOTO_IN_ROLL);
+    }
+
+    @Test
+    public void testSessionDump() throws Exception {
+        System.out.println("sessionDump");
+        int count = 0;
+        for (Element resp: dumpedResponses()) {
+            SoapTemplate template = TEMPLATES.get(resp.getName());
+            assertNotNull(resp.getName(), template);
+            List<String> names = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            for (Object child: resp.getChildren()) {
+                Element elm = (Element)child;
+                names.add(elm.getName());
+                values.add(elm.getText());
+            }
+            byte[] expected = jdomResponse(resp.getName(), names, values);
+            byte[] actual = template.toBytes(
+                    values.toArray(new String[values.size()]));
+            assertArrayEquals(resp.getName(), expected, actual);
+            ++count;
+        }
+        assertEquals(4, count);
+    }
+
+    @Test
+    public void testSpecialValues() throws Exception {
+        System.out.println("specialValues");
+        List<String> names = new ArrayList<String>();
+        names.add("credential");
+        names.add("snonce");
+        names.add("transfermode");
+        names.add("transfermodetimestamp");
+        names.add("upsyncallowed");
+        String[] values = {"a&b<c>d", "  x \t y\r\n ", "", " ", "été"};
+        byte[] expected = jdomResponse("StartSessionResponse", names,
+                Arrays.asList(values));
+        assertArrayEquals(expected, SoapTemplate.START_SESSION.toBytes(values));
+    }
+
+    /**
+     * Builds a response the way the server did with JDOM
+     */
+    private static byte[] jdomResponse(String action, List<String> names,
+            List<String> values) throws IOException {
+        Element resp = new Element(action, EYEFI_NAMESPACE);
+        for (int i = 0; i < names.size(); ++i) {
+            resp.addContent(new Element(names.get(i)).setText(values.get(i)));
+        }
+        Document doc = SoapEnvelope.wrap(resp);
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        XMLOutputter outp = new XMLOutputter();
+        outp.setFormat(Format.getCompactFormat());
+        outp.output(doc, bao);
+        return bao.toByteArray();
+    }
+
+    private static List<Element> dumpedResponses() throws Exception {
+        String dump = readText(SESSION_DUMP);
+        List<Element> result = new ArrayList<Element>();
+        SAXBuilder builder = new SAXBuilder();
+        int start = dump.indexOf("<?xml");
+        while (start >= 0) {
+            String endTag = "</SOAP-ENV:Envelope>";
+            int end = dump.indexOf(endTag, start) + endTag.length();
+            Document doc = builder.build(
+                    new StringReader(dump.substring(start, end)));
+            Element req = SoapEnvelope.strip(doc);
+            if (req.getName().endsWith("Response")) {
+                result.add(req);
+            }
+            start = dump.indexOf("<?xml", end);
+        }
+        return result;
+    }
+
+    private static String readText(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            return new String(baos.toByteArray(), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import org.tastefuljava.sceyefi.capture.multipart.Multipart;
+import org.tastefuljava.sceyefi.capture.multipart.Part;
+import org.tastefuljava.sceyefi.capture.server.ChecksumInputStream;
+import org.tastefuljava.sceyefi.capture.tar.TarEntry;
+import org.tastefuljava.sceyefi.capture.tar.TarReader;
+
+/**
+ * Measures the CPU time per GB of the upload path, from the multipart body
+ * to a file: multipart, checksum, tar, disk. The entries are either copied
+ * through a 4 KB buffer, as the handlers used to do, or transferred straight
+ * from the multipart buffer to a file channel.
+ */
+public class UploadBenchmark {
+    private static final int ENTRY_SIZE = 256*1024*1024;
+    private static final int RUNS = 4;
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = createUpload(new Random(1234), ENTRY_SIZE);
+        File file = File.createTempFile("upload", ".bin");
+        try {
+            for (int i = 0; i < 2; ++i) {
+                measure("copy", data, file, false);
+                measure("transfer", data, file, true);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void measure(String name, byte[] data, File file,
+            boolean transfer) throws IOException {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long cpu = mx.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        long total = 0;
+        for (int i = 0; i < RUNS; ++i) {
+            total += upload(data, file, transfer);
+        }
+        double gb = total/(1024.0*1024*1024);
+        System.out.printf("%-10s %7.0f ms CPU/GB %7.0f ms/GB%n", name,
+                (mx.getCurrentThreadCpuTime() - cpu)/1e6/gb,
+                (System.nanoTime() - start)/1e6/gb);
+    }
+
+    private static long upload(byte[] data, File file, boolean transfer)
+            throws IOException {
+        Multipart mp = new Multipart(new ByteArrayInputStream(data),
+                "UTF-8", "AaB03x".getBytes());
+        Part part = mp.nextPart();
+        ChecksumInputStream stream = new ChecksumInputStream(part.getBody());
+        TarReader tr = new TarReader(stream);
+        long total = 0;
+        for (TarEntry te = tr.nextEntry(); te != null; te = tr.nextEntry()) {
+            InputStream in = te.getInputStream();
+            if (transfer) {
+                FileChannel channel = new FileOutputStream(file).getChannel();
+                try {
+                    total += in.transferTo(Channels.newOutputStream(channel));
+                } finally {
+                    channel.close();
+                }
+            } else {
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    byte buf[] = new byte[4096];
+                    for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                        out.write(buf, 0, n);
+                        total += n;
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        }
+        stream.checksum(new byte[16]);
+        return total;
+    }
+
+    private static byte[] createUpload(Random random, int size)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        out.write(("--AaB03x\r\n"
+                + "Content-Type: application/x-tar\r\n"
+                + "\r\n").getBytes("ASCII"));
+        byte[] header = new byte[512];
+        byte[] name = "MOVIE.MOV".getBytes("ASCII");
+        System.arraycopy(name, 0, header, 0, name.length);
+        put(header, 100, "0000644");
+        put(header, 124, String.format("%011o", size));
+        put(header, 136, String.format("%011o", 1300000000L));
+        header[156] = '0';
+        int sum = 0;
+        for (int i = 0; i < 512; ++i) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        put(header, 148, String.format("%06o", sum));
+        header[155] = ' ';
+        out.write(header);
+        byte[] body = new byte[1024*1024];
+        for (int i = 0; i < size; i += body.length) {
+            random.nextBytes(body);
+            out.write(body, 0, Math.min(body.length, size - i));
+        }
+        out.write(new byte[1024]);
+        out.write("\r\n--AaB03x--\r\n".getBytes("ASCII"));
+        return out.toByteArray();
+    }
+
+    private static void put(byte[] header, int offs, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes("ASCII");
+        System.arraycopy(bytes, 0, header, offs, bytes.length);
+    }
+}
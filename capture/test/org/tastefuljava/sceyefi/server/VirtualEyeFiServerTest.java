@@ -0,0 +1,164 @@
+package org.tastefuljava.sceyefi.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiCard;
+import org.tastefuljava.sceyefi.capture.conf.EyeFiConf;
+import org.tastefuljava.sceyefi.capture.conf.ServerConf;
+import org.tastefuljava.sceyefi.capture.server.EyeFiServer;
+import org.tastefuljava.sceyefi.capture.spi.EyeFiHandler;
+import org.tastefuljava.sceyefi.capture.spi.UploadHandler;
+import org.tastefuljava.sceyefi.client.EyeFiClient;
+import org.tastefuljava.sceyefi.conf.TestSettings;
+import org.tastefuljava.sceyefi.tar.TarReaderTest;
+import static org.junit.Assert.*;
+
+public class VirtualEyeFiServerTest {
+    private static final int CLIENTS = 8;
+    private static final Semaphore started = new Semaphore(0);
+    // the thread of the last upload started
+    private static volatile Thread uploadThread;
+    private static File tempDir;
+    private static EyeFiConf conf;
+    private static EyeFiServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        tempDir = new File(System.getProperty("user.home"), "EyeFiTemp");
+        tempDir.mkdir();
+        conf = EyeFiConf.load(TestSettings.create(tempDir, CLIENTS));
+        Properties props = new Properties();
+        props.setProperty("sceyefi.executor", ServerConf.EXECUTOR_VIRTUAL);
+        props.setProperty("sceyefi.maxUploads", "2");
+        server = EyeFiServer.start(conf, new ServerConf(props),
+                new ThreadHandler(new FileEyeFiHandler(tempDir)));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        System.out.println("upload");
+        upload(conf.getCards()[0]);
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        System.out.println("virtualThreads");
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException ex) {
+            isVirtual = null;
+        }
+        Assume.assumeTrue("Virtual threads not supported", isVirtual != null);
+        upload(conf.getCards()[0]);
+        assertEquals(Boolean.TRUE, isVirtual.invoke(uploadThread));
+    }
+
+    @Test
+    public void testHttpTransport() throws Exception {
+        System.out.println("httpTransport");
+        Properties props = new Properties();
+        props.setProperty("sceyefi.executor", ServerConf.EXECUTOR_VIRTUAL);
+        props.setProperty("sceyefi.transport", ServerConf.TRANSPORT_HTTP);
+        try {
+            EyeFiServer.start(conf, new ServerConf(props),
+                    new FileEyeFiHandler(tempDir)).close();
+            fail("The http transport accepted virtual threads");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSlowClient() throws Exception {
+        System.out.println("slowClient");
+        EyeFiCard[] cards = conf.getCards();
+        started.drainPermits();
+        Socket slow = SlowClient.startUpload(cards[0]);
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+            // a card stuck in the middle of its upload does not hold up
+            // another one
+            final EyeFiCard card = cards[1];
+            Future<Void> fast = exec.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    upload(card);
+                    return null;
+                }
+            });
+            fast.get(20, TimeUnit.SECONDS);
+        } finally {
+            exec.shutdownNow();
+            slow.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        System.out.println("concurrentUploads");
+        ExecutorService exec = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final EyeFiCard card: conf.getCards()) {
+                results.add(exec.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        upload(card);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result: results) {
+                result.get();
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private static void upload(EyeFiCard card) throws Exception {
+        EyeFiClient client = new EyeFiClient("localhost", card);
+        URL url = TarReaderTest.class.getResource("P1030001.JPG.tar");
+        client.uploadArchive(url, "P1030001.JPG.tar");
+    }
+
+
+
+    /**
+     * Records the thread on which each upload starts
+     */
+    private static class ThreadHandler implements EyeFiHandler {
+        private final EyeFiHandler handler;
+
+        ThreadHandler(EyeFiHandler handler) {
+            this.handler = handler;
+        }
+
+        public UploadHandler startUpload(EyeFiCard card, String archiveName) {
+            uploadThread = Thread.currentThread();
+            started.release();
+            return handler.startUpload(card, archiveName);
+        }
+    }
+}
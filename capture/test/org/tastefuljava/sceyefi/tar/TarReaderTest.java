@@ -2,8 +2,11 @@ package org.tastefuljava.sceyefi.tar;
 
 import org.tastefuljava.sceyefi.capture.tar.TarEntry;
 import org.tastefuljava.sceyefi.capture.tar.TarReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -51,4 +54,230 @@ public class TarReaderTest {
         entry = reader.nextEntry();
         assertNull(entry);
     }
+
+    @Test
+    public void testShortReads() throws Exception {
+        System.out.println("shortReads");
+        byte[] data = readResource();
+        for (int chunk: new int[] {1, 7, 511, 513}) {
+            TarReader tr = new TarReader(new ChunkedInputStream(data, chunk));
+            TarEntry entry = tr.nextEntry();
+            assertEquals("P1030001.JPG", entry.getFileName());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(entry.getLength(),
+                    entry.getInputStream().transferTo(out));
+            assertEquals(entry.getLength(), out.size());
+            // header at offset 0, body from offset 512
+            assertArrayEquals(Arrays.copyOfRange(data, 512,
+                    512 + (int)entry.getLength()), out.toByteArray());
+            entry = tr.nextEntry();
+            assertEquals("P1030001.JPG.log", entry.getFileName());
+            assertNull(tr.nextEntry());
+        }
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        System.out.println("skip");
+        // the first entry is skipped without being read or closed
+        TarEntry entry = reader.nextEntry();
+        long length = entry.getLength();
+        entry = reader.nextEntry();
+        assertEquals("P1030001.JPG.log", entry.getFileName());
+        InputStream in = entry.getInputStream();
+        assertEquals(10, in.skip(10));
+        byte[] rest = new byte[(int)entry.getLength()];
+        int pos = 0;
+        for (int n = in.read(rest, pos, rest.length - pos); n > 0;
+                n = in.read(rest, pos, rest.length - pos)) {
+            pos += n;
+        }
+        assertEquals(entry.getLength() - 10, pos);
+        assertEquals(-1, in.read());
+        assertEquals(0, in.skip(10));
+        assertTrue(length > entry.getLength());
+        assertNull(reader.nextEntry());
+    }
+
+    @Test
+    public void testExtendedHeaders() throws Exception {
+        System.out.println("extendedHeaders");
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 20; ++i) {
+            buf.append("long-directory-name/");
+        }
+        String longName = buf.append("MOVIE0001.MOV").toString();
+        TarBuilder tar = new TarBuilder();
+        // ustar prefix
+        tar.entry('0', "DCIM/100EYEFI", "P0000001.JPG", new byte[10], false);
+        // a directory is skipped
+        tar.entry('5', "", "DCIM/", new byte[0], false);
+        // GNU long name
+        tar.entry('L', "", "././@LongLink", (longName + "\0").getBytes(),
+                false);
+        tar.entry('0', "", longName.substring(0, 99), new byte[513], false);
+        // PAX path, size and mtime; the size in the header is ignored
+        tar.entry('x', "", "PaxHeader", (record("path", longName)
+                + record("size", "1000")
+                + record("mtime", "1300000000.25")).getBytes("UTF-8"), false);
+        tar.entry('0', "", "ignored", new byte[1000], false, 0);
+        // base-256 size
+        tar.entry('0', "", "P0000002.JPG", new byte[700], true);
+        TarReader tr = new TarReader(
+                new ByteArrayInputStream(tar.toByteArray()));
+        TarEntry entry = tr.nextEntry();
+        assertEquals("DCIM/100EYEFI/P0000001.JPG", entry.getFileName());
+        assertEquals(10, entry.getLength());
+        entry = tr.nextEntry();
+        assertEquals(longName, entry.getFileName());
+        assertEquals(513, entry.getLength());
+        entry = tr.nextEntry();
+        assertEquals(longName, entry.getFileName());
+        assertEquals(1000, entry.getLength());
+        assertEquals(1300000000250L, entry.getLastModified().getTime());
+        assertEquals(1000, entry.getInputStream().transferTo(
+                new ByteArrayOutputStream()));
+        entry = tr.nextEntry();
+        assertEquals("P0000002.JPG", entry.getFileName());
+        assertEquals(700, entry.getLength());
+        assertNull(tr.nextEntry());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadChecksum() throws Exception {
+        System.out.println("badChecksum");
+        TarBuilder tar = new TarBuilder();
+        tar.entry('0', "", "P0000001.JPG", new byte[10], false);
+        byte[] data = tar.toByteArray();
+        ++data[0];
+        new TarReader(new ByteArrayInputStream(data)).nextEntry();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeSize() throws Exception {
+        System.out.println("negativeSize");
+        TarBuilder tar = new TarBuilder();
+        tar.entry('0', "", "P0000001.JPG", new byte[0], true, -5);
+        new TarReader(new ByteArrayInputStream(tar.toByteArray()))
+                .nextEntry();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativePaxSize() throws Exception {
+        System.out.println("negativePaxSize");
+        TarBuilder tar = new TarBuilder();
+        tar.entry('x', "", "PaxHeader",
+                record("size", "-5").getBytes("UTF-8"), false);
+        tar.entry('0', "", "P0000001.JPG", new byte[10], false);
+        new TarReader(new ByteArrayInputStream(tar.toByteArray()))
+                .nextEntry();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeExtendedSize() throws Exception {
+        System.out.println("negativeExtendedSize");
+        TarBuilder tar = new TarBuilder();
+        tar.entry('x', "", "PaxHeader", new byte[0], true, -5);
+        tar.entry('0', "", "P0000001.JPG", new byte[10], false);
+        new TarReader(new ByteArrayInputStream(tar.toByteArray()))
+                .nextEntry();
+    }
+
+    private static String record(String key, String value)
+            throws IOException {
+        int len = key.getBytes("UTF-8").length
+                + value.getBytes("UTF-8").length + 3;
+        int digits = Integer.toString(len).length();
+        len += digits;
+        if (Integer.toString(len).length() > digits) {
+            ++len;
+        }
+        return len + " " + key + "=" + value + "\n";
+    }
+
+    private static byte[] readResource() throws IOException {
+        InputStream in = TarReaderTest.class.getResourceAsStream(
+                "P1030001.JPG.tar");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the data in chunks of at most the given size, as a socket would
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    /**
+     * Writes ustar archives
+     */
+    private static class TarBuilder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void entry(char type, String prefix, String name, byte[] body,
+                boolean base256) throws IOException {
+            entry(type, prefix, name, body, base256, body.length);
+        }
+
+        void entry(char type, String prefix, String name, byte[] body,
+                boolean base256, long size) throws IOException {
+            byte[] header = new byte[512];
+            put(header, 0, name);
+            put(header, 100, "0000644");
+            if (base256) {
+                header[124] = (byte)(size < 0 ? 0xFF : 0x80);
+                for (int i = 135; i > 124; --i) {
+                    header[i] = (byte)size;
+                    size >>>= 8;
+                }
+            } else {
+                put(header, 124, String.format("%011o", size));
+            }
+            put(header, 136, String.format("%011o", 1300000000L));
+            header[156] = (byte)type;
+            put(header, 257, "ustar");
+            put(header, 263, "00");
+            put(header, 345, prefix);
+            int sum = 0;
+            for (int i = 0; i < 512; ++i) {
+                sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+            }
+            put(header, 148, String.format("%06o", sum));
+            header[155] = ' ';
+            out.write(header);
+            out.write(body);
+            out.write(new byte[(512 - body.length%512)%512]);
+        }
+
+        byte[] toByteArray() {
+            // end of archive
+            out.write(new byte[1024], 0, 1024);
+            return out.toByteArray();
+        }
+
+        private static void put(byte[] header, int offs, String s)
+                throws IOException {
+            byte[] bytes = s.getBytes("UTF-8");
+            System.arraycopy(bytes, 0, header, offs, bytes.length);
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.util.BufferPipe;
+import org.tastefuljava.sceyefi.capture.util.BufferPool;
+import static org.junit.Assert.*;
+
+public class BufferPipeTest {
+    private ExecutorService exec;
+
+    @Before
+    public void setUp() {
+        exec = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        exec.shutdownNow();
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        System.out.println("transfer");
+        byte[] data = new byte[1000000];
+        new Random(1234).nextBytes(data);
+        // a ring much smaller than the data: the producer has to wait
+        BufferPipe pipe = new BufferPipe(new BufferPool(1000, 4, false), 3);
+        Future<Void> producer = exec.submit(produce(pipe, data, 777));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = pipe.getInputStream();
+        byte[] buf = new byte[333];
+        assertEquals(data[0], (byte)in.read());
+        out.write(data[0]);
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        producer.get();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        System.out.println("transferTo");
+        byte[] data = new byte[100000];
+        new Random(5678).nextBytes(data);
+        BufferPipe pipe = new BufferPipe(new BufferPool(4096, 4, true), 2);
+        Future<Void> producer = exec.submit(produce(pipe, data, 5000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = pipe.getInputStream();
+        assertEquals(data.length, in.transferTo(out));
+        in.close();
+        producer.get();
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        System.out.println("abort");
+        final BufferPipe pipe = new BufferPipe(
+                new BufferPool(100, 4, false), 4);
+        Future<Void> producer = exec.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                OutputStream out = pipe.getOutputStream();
+                out.write(new byte[250]);
+                out.flush();
+                pipe.abort();
+                return null;
+            }
+        });
+        InputStream in = pipe.getInputStream();
+        try {
+            in.transferTo(new ByteArrayOutputStream());
+            fail("Abort not reported");
+        } catch (IOException ex) {
+            // expected
+        } finally {
+            in.close();
+        }
+        producer.get();
+    }
+
+    @Test
+    public void testConsumerClose() throws Exception {
+        System.out.println("consumerClose");
+        BufferPipe pipe = new BufferPipe(new BufferPool(100, 4, false), 2);
+        Future<Void> producer = exec.submit(produce(pipe, new byte[100000],
+                100));
+        InputStream in = pipe.getInputStream();
+        in.read(new byte[10]);
+        in.close();
+        try {
+            producer.get();
+            fail("Close not reported");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        assertFalse(pipe.abort());
+    }
+
+    private static Callable<Void> produce(final BufferPipe pipe,
+            final byte[] data, final int chunk) {
+        return new Callable<Void>() {
+            public Void call() throws IOException {
+                OutputStream out = pipe.getOutputStream();
+                for (int i = 0; i < data.length; i += chunk) {
+                    out.write(data, i, Math.min(chunk, data.length - i));
+                }
+                out.close();
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,174 @@
+/*
+    Sceye-Fi Photo capture
+    Copyright (C) 2011-2012  Maurice Perry <maurice@perry.ch>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tastefuljava.sceyefi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tastefuljava.sceyefi.capture.util.GroupCommit;
+import static org.junit.Assert.*;
+
+public class GroupCommitTest {
+    private static final int THREADS = 10;
+
+    private File tempDir;
+    private ExecutorService exec;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("sceyefi").toFile();
+        exec = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        exec.shutdownNow();
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        System.out.println("batches");
+        // a long window, so that all the threads join the first batch
+        final GroupCommit group = new GroupCommit(500, 4);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger publishCount = new AtomicInteger();
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < THREADS; ++i) {
+            final File file = new File(tempDir, "file" + i);
+            Files.write(file.toPath(), new byte[] {(byte)i});
+            results.add(exec.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    group.sync(Collections.singletonList(file),
+                            new GroupCommit.Publisher() {
+                        public Collection<File> publish() {
+                            publishCount.incrementAndGet();
+                            return Collections.singletonList(tempDir);
+                        }
+                    });
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result: results) {
+            result.get();
+        }
+        assertTrue(group.getBatchCount() >= 1);
+        assertTrue(group.getBatchCount() < THREADS);
+        // each upload is published once, files and folders in one batch
+        assertEquals(THREADS, publishCount.get());
+    }
+
+    @Test
+    public void testPublishError() throws Exception {
+        System.out.println("publishError");
+        final GroupCommit group = new GroupCommit(500, 4);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 2; ++i) {
+            final File file = new File(tempDir, "file" + i);
+            Files.write(file.toPath(), new byte[] {(byte)i});
+            final boolean fail = i == 0;
+            results.add(exec.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    group.sync(Collections.singletonList(file),
+                            new GroupCommit.Publisher() {
+                        public Collection<File> publish() throws IOException {
+                            if (fail) {
+                                throw new IOException("Cannot publish");
+                            }
+                            return Collections.singletonList(tempDir);
+                        }
+                    });
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        try {
+            results.get(0).get();
+            fail("Publish error not reported");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        // the other upload of the batch is not affected
+        results.get(1).get();
+    }
+
+    @Test
+    public void testInterrupted() throws Exception {
+        System.out.println("interrupted");
+        GroupCommit group = new GroupCommit(500, 4);
+        File file = new File(tempDir, "file");
+        Files.write(file.toPath(), new byte[] {1});
+        Thread.currentThread().interrupt();
+        try {
+            // the batch is still flushed, and the interrupt kept
+            group.sync(Collections.singletonList(file), publisher(tempDir));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, group.getBatchCount());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        System.out.println("error");
+        GroupCommit group = new GroupCommit(1, 4);
+        try {
+            group.sync(Collections.singletonList(new File(tempDir, "none")),
+                    publisher(tempDir));
+            fail("Missing file not reported");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals(1, group.getBatchCount());
+    }
+
+    private static GroupCommit.Publisher publisher(final File folder) {
+        return new GroupCommit.Publisher() {
+            public Collection<File> publish() {
+                return Collections.singletonList(folder);
+            }
+        };
+    }
+}